@@ -21,4 +21,12 @@ public class ClientFileConfigurationReader extends FileConfigurationReader {
 
     public static int getClientTimeout(){ return Integer.parseInt(clientConfigMap.get("Timeout"));}
 
+    public static String getClientResponseFormat() {
+        return clientConfigMap.get("Response_Format");
+    }
+
+    public static String getClientSessionFile() {
+        return clientConfigMap.get("Session_File");
+    }
+
 }
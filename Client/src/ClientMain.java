@@ -1,10 +1,17 @@
 import java.nio.*;
 import java.nio.channels.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Scanner;
+import java.util.concurrent.ThreadLocalRandom;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 public class ClientMain {
 
@@ -12,6 +19,31 @@ public class ClientMain {
     public static final int DEFAULT_PORT = ClientFileConfigurationReader.getClientPort();
     public static String username = "";
     public static AtomicBoolean logged = new AtomicBoolean(false);
+    // True se il server invia hotel e classifiche in formato binario, che il client visualizza localmente.
+    public static boolean binaryFormat = ClientFileConfigurationReader.getClientResponseFormat().equals("binary");
+    private static final int BINARY_FORMAT_WITH_REVIEWS = 2; // Codice del formato binario con i voti delle recensioni.
+    private static final int HANDSHAKE = 14; // Codice dell'handshake con cui client e server concordano versione e funzionalità.
+    private static final int PROTOCOL_VERSION = 1; // Versione più recente del protocollo conosciuta dal client.
+    private static final int CAPABILITY_RESPONSE_FORMAT = 1 << 1; // Funzionalità opzionali usate dal client, con gli stessi bit del server.
+    private static final int CAPABILITY_SESSIONS = 1 << 3;
+    private static final int CAPABILITY_COMPRESSION = 1 << 4;
+    private static final int CAPABILITY_PUSH = 1 << 5;
+    private static final int CLIENT_CAPABILITIES = CAPABILITY_RESPONSE_FORMAT | CAPABILITY_SESSIONS | CAPABILITY_COMPRESSION | CAPABILITY_PUSH; // Funzionalità usate dal client.
+    private static final int PUSH_FRAME = Integer.MIN_VALUE; // Intero che precede le notifiche push inviate dal server tra una risposta e l'altra.
+    private static final int COMPRESSED_RESPONSE = 1; // Flag delle risposte compresse con Deflater.
+    private static final Inflater inflater = new Inflater(); // Inflater riutilizzato per tutte le risposte compresse.
+    private static int capabilities = 0; // Funzionalità concordate con il server durante l'handshake.
+    private static PushReceiverTask pushReceiver = null; // Task che stampa le notifiche push mentre il client attende l'utente.
+    private static boolean pushReceiverReading = false; // True se il prossimo codice di risposta va preso dal pushReceiver.
+    private static final int LOGIN_WITH_TOKEN = 12; // Codice del login che restituisce anche il token della sessione.
+    private static final int RESUME_SESSION = 13; // Codice della ripresa di una sessione a partire dal token.
+    private static final int BUSY = -6; // Codice con cui il server sovraccarico rifiuta le operazioni costose.
+    private static final int RATE_LIMITED = -7; // Codice con cui il server rifiuta registrazioni e recensioni troppo frequenti.
+    private static final int MAX_BUSY_RETRIES = 4; // Tentativi ripetuti dopo un BUSY prima di rinunciare.
+    private static final long BACKOFF_BASE_MILLIS = 200; // Attesa massima dopo il primo BUSY, raddoppiata a ogni tentativo.
+    private static final long BACKOFF_MAX_MILLIS = 5000; // Limite dell'attesa massima tra due tentativi.
+    // File in cui viene salvato il token della sessione, così che un nuovo avvio del client la riprenda senza password.
+    private static final Path SESSION_FILE = Paths.get(ClientFileConfigurationReader.getClientSessionFile());
 
     /**
      * Metodo che scrive un insieme di interi e stringhe al server tramite SocketChannel.
@@ -27,7 +59,7 @@ public class ClientMain {
         // Calcola il numero di byte necessari per le coppie (lunghezza stringa - stringa)
         if(strings.length != 0) {
             for (String str : strings) {
-                nBytes += Integer.BYTES + str.getBytes().length;
+                nBytes += Integer.BYTES + str.getBytes(StandardCharsets.UTF_8).length;
             }
         }
         
@@ -37,14 +69,13 @@ public class ClientMain {
         outputBuffer.putInt(integers[0]);
         // Inserisco nel buffer le coppie (lunghezza stringhe - stringhe)
         for (String str : strings) {
-            outputBuffer.putInt(str.length());
-            outputBuffer.put(str.getBytes());
-        }
-        // Se l'operazione è la numero 6 (insertReview) devo aggiungere anche i valori della recensione.
-        if(integers[0] == 6) { 
-            for(int i = 1; i<integers.length; i++)
-                outputBuffer.putInt(integers[i]);
+            byte[] stringBytes = str.getBytes(StandardCharsets.UTF_8);
+            outputBuffer.putInt(stringBytes.length);
+            outputBuffer.put(stringBytes);
         }
+        // Inserisco gli eventuali interi finali (es. i valori della recensione per la insertReview).
+        for(int i = 1; i<integers.length; i++)
+            outputBuffer.putInt(integers[i]);
         
         int bytesWritten = 0;
         
@@ -69,12 +100,33 @@ public class ClientMain {
     }
 
     /**
-     * Metodo che legge un singolo intero dal server tramite SocketChannel.
+     * Metodo che legge un singolo intero dal server tramite SocketChannel. Le notifiche push ricevute
+     * prima dell'intero vengono stampate e saltate. Se il PushReceiverTask sta leggendo dal canale,
+     * l'intero è il codice di risposta che ha letto il task.
      * @param server Il SocketChannel attraverso il quale i dati saranno inviati al server.
      * @return
      * @throws IOException
      */
     private static int readIntegerFromServer(SocketChannel server) {
+        if(ClientMain.pushReceiverReading) {
+            ClientMain.pushReceiverReading = false;
+            return ClientMain.pushReceiver.takeResponseCode();
+        }
+        int value = ClientMain.readRawIntegerFromServer(server);
+        while(value == PUSH_FRAME) {
+            int msg_length = ClientMain.readRawIntegerFromServer(server);
+            if(msg_length < 0)
+                return -5;
+            String msg = new String(ClientMain.readStringFromServer(server, msg_length), StandardCharsets.UTF_8);
+            if(ClientMain.logged.get())
+                ConsoleManage.synchronizedPrint("[Push notification received] >> " + msg + "\n");
+            value = ClientMain.readRawIntegerFromServer(server);
+        }
+        return value;
+    }
+
+    // Legge un singolo intero dal server, senza interpretare le notifiche push.
+    private static int readRawIntegerFromServer(SocketChannel server) {
         try{
             ByteBuffer inputBuffer = ByteBuffer.allocate(Integer.BYTES);
             // Ricevo il codice dal server.
@@ -107,6 +159,37 @@ public class ClientMain {
         }
     }
 
+    /**
+     * Metodo che invia una richiesta al server e ne riceve il codice di risposta. Se il server è
+     * sovraccarico (BUSY) la richiesta viene ripetuta dopo un'attesa casuale tra 0 e un limite che
+     * raddoppia a ogni tentativo (backoff esponenziale con jitter), così che i client rifiutati
+     * insieme non ritentino tutti nello stesso istante.
+     *
+     * @param server Il SocketChannel per comunicare con il server.
+     * @param integers Il codice dell'operazione seguito dagli eventuali interi da inviare.
+     * @param strings Le stringhe da inviare.
+     * @return int Il codice di risposta del server, BUSY se il server è ancora sovraccarico dopo
+     *             MAX_BUSY_RETRIES tentativi, -5 se la comunicazione con il server si è interrotta.
+     */
+    private static int requestWithBackoff(SocketChannel server, int[] integers, String[] strings) {
+        for(int attempt = 0; ; attempt++) {
+            if(!ClientMain.writeToServer(server, integers, strings))
+                return -5;
+            int code = ClientMain.readIntegerFromServer(server);
+            if(code != BUSY || attempt == MAX_BUSY_RETRIES)
+                return code;
+            long delay = ThreadLocalRandom.current().nextLong(Math.min(BACKOFF_MAX_MILLIS, BACKOFF_BASE_MILLIS << attempt) + 1);
+            ConsoleManage.synchronizedPrint("Server busy, retrying in " + delay + " ms.\n");
+            try {
+                Thread.sleep(delay);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return code;
+            }
+        }
+    }
+
     /**
      * Metodo che legge una stringa sotto forma di array di byte dal server tramite SocketChannel
      * assumendo che i primi 4 byte siano sempre la lunghezza della stringa.
@@ -153,6 +236,187 @@ public class ClientMain {
         }
     }
 
+    // Legge dal buffer una stringa codificata come lunghezza seguita dai byte UTF-8.
+    private static String readBinaryString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Metodo che costruisce la rappresentazione testuale di un hotel ricevuto in formato binario:
+     * nome, descrizione, città, telefono, numero di servizi e servizi, media pesata, numero di
+     * recensioni e i cinque voti di ciascuna recensione.
+     *
+     * @param buffer il ByteBuffer posizionato all'inizio dell'hotel; al termine è posizionato dopo di esso.
+     * @return String la descrizione dell'hotel da stampare.
+     */
+    private static String renderHotel(ByteBuffer buffer) {
+        StringBuilder sb = new StringBuilder();
+        String name = ClientMain.readBinaryString(buffer);
+        String description = ClientMain.readBinaryString(buffer);
+        String city = ClientMain.readBinaryString(buffer);
+        String phone = ClientMain.readBinaryString(buffer);
+        sb.append(name).append(" (").append(city).append(")\n");
+        sb.append("  ").append(description).append("\n");
+        sb.append("  Phone: ").append(phone).append("\n");
+        int nServices = buffer.getInt();
+        sb.append("  Services: ");
+        for(int i = 0; i < nServices; i++)
+            sb.append(i == 0 ? "" : ", ").append(ClientMain.readBinaryString(buffer));
+        sb.append("\n");
+        sb.append("  Weighted average: ").append(String.format("%.2f", buffer.getDouble())).append("\n");
+        int nReviews = buffer.getInt();
+        sb.append("  Reviews: ").append(nReviews).append("\n");
+        // Il client chiede sempre il formato con i voti delle recensioni (BINARY_FORMAT_WITH_REVIEWS).
+        for(int i = 0; i < nReviews; i++) {
+            sb.append("    Global score: ").append(buffer.getInt()).append(", Position score: ").append(buffer.getInt())
+                .append(", Cleaning score: ").append(buffer.getInt()).append(", Service score: ").append(buffer.getInt())
+                .append(", Price score: ").append(buffer.getInt()).append("\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Metodo che costruisce la rappresentazione testuale di una classifica ricevuta in formato
+     * binario: il numero di hotel seguito dagli hotel in ordine di classifica.
+     *
+     * @param buffer il ByteBuffer che contiene la classifica.
+     * @return String la classifica da stampare.
+     */
+    private static String renderHotels(ByteBuffer buffer) {
+        StringBuilder sb = new StringBuilder();
+        int nHotels = buffer.getInt();
+        for(int i = 1; i <= nHotels; i++)
+            sb.append(i).append(") ").append(ClientMain.renderHotel(buffer));
+        return sb.toString();
+    }
+
+    /**
+     * Metodo che legge dal server la lunghezza e i byte degli hotel di una risposta. Se è stata
+     * concordata la compressione la lunghezza è preceduta dai flag della risposta; per le risposte
+     * compresse la lunghezza è quella originale e gli hotel arrivano in blocchi compressi, ciascuno
+     * preceduto dal proprio numero di byte, che vengono decompressi finché non si ottiene l'intera
+     * risposta.
+     *
+     * @param server Il SocketChannel attraverso il quale i dati saranno ricevuti dal server.
+     * @return byte[] I byte degli hotel, oppure un array di byte di lunghezza 1 in caso di errore.
+     */
+    private static byte[] readHotelsFromServer(SocketChannel server) {
+        int flags = ClientMain.hasCapability(CAPABILITY_COMPRESSION) ? ClientMain.readIntegerFromServer(server) : 0;
+        int length = ClientMain.readIntegerFromServer(server);
+        if((flags & COMPRESSED_RESPONSE) == 0)
+            return ClientMain.readStringFromServer(server, length);
+        byte[] bytes = new byte[length];
+        ClientMain.inflater.reset();
+        try {
+            int nBytes = 0;
+            // L'ultimo blocco chiude lo stream compresso e può arrivare dopo l'ultimo byte della risposta.
+            while (!ClientMain.inflater.finished()) {
+                if (ClientMain.inflater.needsInput()) {
+                    int chunkLength = ClientMain.readRawIntegerFromServer(server);
+                    if (chunkLength < 0)
+                        throw new DataFormatException("invalid chunk length " + chunkLength);
+                    ClientMain.inflater.setInput(ClientMain.readStringFromServer(server, chunkLength));
+                }
+                if (nBytes < length)
+                    nBytes += ClientMain.inflater.inflate(bytes, nBytes, length - nBytes);
+                else if (ClientMain.inflater.inflate(new byte[1]) > 0)
+                    throw new DataFormatException("response longer than " + length + " bytes");
+            }
+            return bytes;
+        }
+        catch (DataFormatException e) {
+            System.err.println("Error decompressing server response: " + e.getMessage());
+            return new byte[1];
+        }
+    }
+
+    /**
+     * Metodo che chiede al server di inviare hotel e classifiche in formato binario, con i voti
+     * delle recensioni. Se il server rifiuta il client continua a usare il formato testuale.
+     *
+     * @param server Il SocketChannel per comunicare con il server.
+     */
+    private static void setResponseFormat(SocketChannel server) {
+        if(ClientMain.writeToServer(server, new int[]{10, BINARY_FORMAT_WITH_REVIEWS}, new String[]{}))
+            ClientMain.binaryFormat = ClientMain.readIntegerFromServer(server) == 0;
+        else
+            ClientMain.binaryFormat = false;
+    }
+
+    /**
+     * Metodo che esegue l'handshake con il server: il client invia la versione del protocollo e le
+     * funzionalità che sa usare e riceve quelle supportate da entrambi. Se l'handshake fallisce il
+     * client non usa nessuna funzionalità opzionale.
+     *
+     * @param server Il SocketChannel per comunicare con il server.
+     */
+    private static void handshake(SocketChannel server) {
+        if(ClientMain.writeToServer(server, new int[]{HANDSHAKE, PROTOCOL_VERSION, CLIENT_CAPABILITIES}, new String[]{})
+                && ClientMain.readIntegerFromServer(server) == 0) {
+            ClientMain.readIntegerFromServer(server); // Versione concordata: il client conosce soltanto la versione 1.
+            ClientMain.capabilities = ClientMain.readIntegerFromServer(server);
+        }
+    }
+
+    // True se la funzionalità è stata concordata con il server.
+    private static boolean hasCapability(int capability) {
+        return (ClientMain.capabilities & capability) != 0;
+    }
+
+    /**
+     * Metodo che riprende la sessione salvata dall'ultimo login, se esiste: il server verifica
+     * soltanto il token, senza ripetere il controllo della password. Se la sessione è scaduta il
+     * token viene eliminato e l'utente dovrà rifare il login.
+     *
+     * @param server Il SocketChannel per comunicare con il server.
+     */
+    private static void resumeSession(SocketChannel server) {
+        String token;
+        try {
+            if(!Files.exists(ClientMain.SESSION_FILE))
+                return;
+            token = Files.readString(ClientMain.SESSION_FILE, StandardCharsets.UTF_8).trim();
+        }
+        catch (IOException e) {
+            return;
+        }
+        if(ClientMain.writeToServer(server, new int[]{RESUME_SESSION}, new String[]{token})) {
+            int code = ClientMain.readIntegerFromServer(server);
+            if(code == 0) {
+                int username_length = ClientMain.readIntegerFromServer(server);
+                ClientMain.username = new String(ClientMain.readStringFromServer(server, username_length), StandardCharsets.UTF_8);
+                ClientMain.logged.set(true);
+                ConsoleManage.synchronizedPrint("Session resumed as " + ClientMain.username + ".\n----------------------------------------------\n");
+            }
+            else if(code == -2)
+                ClientMain.deleteSessionToken();
+        }
+    }
+
+    // Salva il token della sessione ricevuto con il login.
+    private static void saveSessionToken(String token) {
+        try {
+            if(ClientMain.SESSION_FILE.getParent() != null)
+                Files.createDirectories(ClientMain.SESSION_FILE.getParent());
+            Files.writeString(ClientMain.SESSION_FILE, token, StandardCharsets.UTF_8);
+        }
+        catch (IOException e) {
+            ConsoleManage.synchronizedErrPrint("Unable to save the session: " + e.getMessage() + "\n");
+        }
+    }
+
+    // Elimina il token della sessione dopo il logout o se il server non la riconosce più.
+    private static void deleteSessionToken() {
+        try {
+            Files.deleteIfExists(ClientMain.SESSION_FILE);
+        }
+        catch (IOException e) {
+            ConsoleManage.synchronizedErrPrint("Unable to delete the session: " + e.getMessage() + "\n");
+        }
+    }
+
     /**
      * Metodo che legge da riga di comando i punteggi della recensione
      * di un hotel tramite Scanner. Se l'utente inserisce un valore non valido
@@ -257,21 +521,23 @@ public class ClientMain {
         // Ricevo username e password da riga di comando
         String username = ClientMain.readString(scanner, "username");
         String password = ClientMain.readString(scanner, "password");
-        // Invio al server: l'operazione che voglio eseguire, username e password.
-        if(ClientMain.writeToServer(server, new int[]{operation}, new String[]{username, password})){
-            // Ricevo dal server l'output dell'operazione richiesta.
-            int code = ClientMain.readIntegerFromServer(server);
-            // Stampo il risultato
-            switch (code) {
-                case 0: ConsoleManage.synchronizedPrint("Registration completed.\n----------------------------------------------\n");
-                    break;
-                case 1: ConsoleManage.synchronizedPrint("Username already used. \n----------------------------------------------\n");
-                    break;
-                case -1: ConsoleManage.synchronizedPrint("Server error.\n----------------------------------------------\n");
-                    break;
-                case -5: ConsoleManage.synchronizedPrint("Connection interrupted by the server.\n----------------------------------------------\n");
-                    break;
-            }
+        // Invio al server l'operazione che voglio eseguire, username e password, e ricevo l'output
+        // dell'operazione richiesta, ritentando se il server è sovraccarico.
+        int code = ClientMain.requestWithBackoff(server, new int[]{operation}, new String[]{username, password});
+        // Stampo il risultato
+        switch (code) {
+            case 0: ConsoleManage.synchronizedPrint("Registration completed.\n----------------------------------------------\n");
+                break;
+            case 1: ConsoleManage.synchronizedPrint("Username already used. \n----------------------------------------------\n");
+                break;
+            case -1: ConsoleManage.synchronizedPrint("Server error.\n----------------------------------------------\n");
+                break;
+            case -5: ConsoleManage.synchronizedPrint("Connection interrupted by the server.\n----------------------------------------------\n");
+                break;
+            case BUSY: ConsoleManage.synchronizedPrint("Server busy, try again later.\n----------------------------------------------\n");
+                break;
+            case RATE_LIMITED: ConsoleManage.synchronizedPrint("Too many registrations, slow down.\n----------------------------------------------\n");
+                break;
         }
     }
 
@@ -290,8 +556,9 @@ public class ClientMain {
         String username = ClientMain.readString(scanner, "username");
         // Lettura da riga di comando della password.
         String password = ClientMain.readString(scanner, "password");
-        // Invio al server: l'operazione che voglio eseguire, username e password.
-        if(ClientMain.writeToServer(server, new int[]{operation}, new String[]{username, password})){
+        // Invio al server: il login (con token se il server gestisce le sessioni), username e password.
+        boolean withToken = ClientMain.hasCapability(CAPABILITY_SESSIONS);
+        if(ClientMain.writeToServer(server, new int[]{withToken ? LOGIN_WITH_TOKEN : operation}, new String[]{username, password})){
             // Ricevo dal server l'output dell'operazione richiesta.
             int code = ClientMain.readIntegerFromServer(server);
             // Stampo il risultato.
@@ -299,6 +566,11 @@ public class ClientMain {
                 case 0: ConsoleManage.synchronizedPrint("Login successfully.\n----------------------------------------------\n");
                     ClientMain.username = username;
                     ClientMain.logged.set(true);
+                    // Ricevo dal server il token della sessione e lo salvo per i prossimi avvii.
+                    if(withToken) {
+                        int token_length = ClientMain.readIntegerFromServer(server);
+                        ClientMain.saveSessionToken(new String(ClientMain.readStringFromServer(server, token_length), StandardCharsets.UTF_8));
+                    }
                     break;
                 case -1:ConsoleManage.synchronizedPrint("User already logged in.\n----------------------------------------------\n");
                     break;
@@ -333,6 +605,7 @@ public class ClientMain {
                     ConsoleManage.synchronizedPrint("Logout successfully.\n----------------------------------------------\n");
                     ClientMain.username = "";
                     ClientMain.logged.set(false);
+                    ClientMain.deleteSessionToken();
                     break;
                 case -1:
                     ConsoleManage.synchronizedPrint("Unable to logout because no login was made.\n----------------------------------------------\n");
@@ -370,11 +643,12 @@ public class ClientMain {
             int code = ClientMain.readIntegerFromServer(server);
             switch(code){
                 case 0: ConsoleManage.synchronizedPrint("Search hotel successfully.\n----------------------------------------------\n");
-                    // Ricevo dal server la lunghezza della stringa che rappresenta l'hotel.
-                    int stringHotel_length = ClientMain.readIntegerFromServer(server);
                     // Ricevo dal server la sequenza di byte che corrisponde alla stringa che rappresenta l'hotel.
-                    byte[] byteStringHotel = ClientMain.readStringFromServer(server, stringHotel_length);
-                    ConsoleManage.synchronizedPrint(new String(byteStringHotel) + ".\n----------------------------------------------\n");
+                    byte[] byteStringHotel = ClientMain.readHotelsFromServer(server);
+                    if(ClientMain.binaryFormat)
+                        ConsoleManage.synchronizedPrint(ClientMain.renderHotel(ByteBuffer.wrap(byteStringHotel)) + "----------------------------------------------\n");
+                    else
+                        ConsoleManage.synchronizedPrint(new String(byteStringHotel, StandardCharsets.UTF_8) + ".\n----------------------------------------------\n");
                     break;
                 case -1:ConsoleManage.synchronizedPrint("Non-existent hotel.\n----------------------------------------------\n");
                     break;
@@ -400,27 +674,27 @@ public class ClientMain {
         ConsoleManage.synchronizedPrint("----------------------------------------------\n");
         // Lettura da riga di comando della città.
         String city = ClientMain.readString(scanner, "city");
-        // Invio al server: l'operazione che voglio eseguire e la citta.
-        if(ClientMain.writeToServer(server, new int[] {operation}, new String[] {city})){
-            // Ricevo dal server l'output dell'operazione richiesta.
-            int code = ClientMain.readIntegerFromServer(server);
-            // Stampo il risultato
-            switch(code){
-                case 0: ConsoleManage.synchronizedPrint("Search hotels successfully.\n----------------------------------------------\n");
-                    // Ricevo dal server la lunghezza della stringa che rappresenta gli hotel per quella città.
-                    int stringHotels_length = ClientMain.readIntegerFromServer(server);
-                    // Ricevo dal server la sequenza di byte che corrisponde alla stringa che rappresenta l'insieme di hotel.
-                    byte[] byteStringHotel = ClientMain.readStringFromServer(server, stringHotels_length);
-                    String temp = new String(byteStringHotel);
-                    ConsoleManage.synchronizedPrint(new String(byteStringHotel) + ".\n----------------------------------------------\n");
-                    break;
-                case -1:ConsoleManage.synchronizedPrint("Non-existent hotel in that city.\n----------------------------------------------\n");
-                    break;
-                case -2:ConsoleManage.synchronizedPrint("Server error.\n----------------------------------------------\n");
-                    break;
-                case -5: ConsoleManage.synchronizedPrint("Connection interrupted by the server.\n----------------------------------------------\n");
-                    break;
-            }
+        // Invio al server l'operazione che voglio eseguire e la città, e ricevo l'output
+        // dell'operazione richiesta, ritentando se il server è sovraccarico.
+        int code = ClientMain.requestWithBackoff(server, new int[] {operation}, new String[] {city});
+        // Stampo il risultato
+        switch(code){
+            case 0: ConsoleManage.synchronizedPrint("Search hotels successfully.\n----------------------------------------------\n");
+                // Ricevo dal server la sequenza di byte che corrisponde alla stringa che rappresenta l'insieme di hotel.
+                byte[] byteStringHotel = ClientMain.readHotelsFromServer(server);
+                if(ClientMain.binaryFormat)
+                    ConsoleManage.synchronizedPrint(ClientMain.renderHotels(ByteBuffer.wrap(byteStringHotel)) + "----------------------------------------------\n");
+                else
+                    ConsoleManage.synchronizedPrint(new String(byteStringHotel, StandardCharsets.UTF_8) + ".\n----------------------------------------------\n");
+                break;
+            case -1:ConsoleManage.synchronizedPrint("Non-existent hotel in that city.\n----------------------------------------------\n");
+                break;
+            case -2:ConsoleManage.synchronizedPrint("Server error.\n----------------------------------------------\n");
+                break;
+            case -5: ConsoleManage.synchronizedPrint("Connection interrupted by the server.\n----------------------------------------------\n");
+                break;
+            case BUSY: ConsoleManage.synchronizedPrint("Server busy, try again later.\n----------------------------------------------\n");
+                break;
         }
 
     }
@@ -463,6 +737,10 @@ public class ClientMain {
                     break;
                 case -3: ConsoleManage.synchronizedPrint("Inexistent hotel.\n----------------------------------------------\n");
                     break;
+                case -4: ConsoleManage.synchronizedPrint("Scores must be between 0 and 5.\n----------------------------------------------\n");
+                    break;
+                case RATE_LIMITED: ConsoleManage.synchronizedPrint("Too many reviews, slow down.\n----------------------------------------------\n");
+                    break;
                 case -5: ConsoleManage.synchronizedPrint("Connection interrupted by the server.\n----------------------------------------------\n");
                     break;
             }
@@ -494,7 +772,7 @@ public class ClientMain {
                     int stringBadge_length = ClientMain.readIntegerFromServer(server);
                     // Ricevo dal server la sequenza di byte che corrisponde alla stringa che rappresenta il badge.
                     byte[] byteStringBadge = ClientMain.readStringFromServer(server, stringBadge_length);
-                    ConsoleManage.synchronizedPrint("Yours badge: " + new String(byteStringBadge) + ".\n----------------------------------------------\n");
+                    ConsoleManage.synchronizedPrint("Yours badge: " + new String(byteStringBadge, StandardCharsets.UTF_8) + ".\n----------------------------------------------\n");
                     break;
                 case -1: ConsoleManage.synchronizedPrint("To receive a badge you must be logged in.\n----------------------------------------------\n");
                     break;
@@ -531,12 +809,34 @@ public class ClientMain {
         try { 
             SocketAddress address = new InetSocketAddress(InetAddress.getByName(ClientMain.Ip),ClientMain.DEFAULT_PORT);
             SocketChannel server = SocketChannel.open(address);
-            // Faccio partire il thread in ascolto per messaggi UDP.
-            Thread listeningUDPThread = new Thread(new ListeningUDPTask(server, ClientMain.logged));
-            listeningUDPThread.start();
+            // Concordo con il server versione del protocollo e funzionalità opzionali.
+            ClientMain.handshake(server);
+            // Se configurato e supportato, chiedo al server il formato binario per hotel e classifiche.
+            if(ClientMain.binaryFormat && ClientMain.hasCapability(CAPABILITY_RESPONSE_FORMAT))
+                ClientMain.setResponseFormat(server);
+            else
+                ClientMain.binaryFormat = false;
+            // Riprendo la sessione dell'ultimo login, se non è stato fatto il logout.
+            if(ClientMain.hasCapability(CAPABILITY_SESSIONS))
+                ClientMain.resumeSession(server);
+            // Faccio partire il thread in ascolto delle notifiche: sulla connessione se il server le invia
+            // come notifiche push, altrimenti come messaggi UDP.
+            Thread listeningThread;
+            if(ClientMain.hasCapability(CAPABILITY_PUSH)) {
+                ClientMain.pushReceiver = new PushReceiverTask(server, ClientMain.logged);
+                listeningThread = new Thread(ClientMain.pushReceiver);
+            }
+            else
+                listeningThread = new Thread(new ListeningUDPTask(server, ClientMain.logged));
+            listeningThread.start();
             try{
                 // Finché il canale con il server è aperto.
                 while (server.isOpen()) {
+                    // Mentre attendo l'utente le notifiche push vengono lette e stampate dal pushReceiver.
+                    if(ClientMain.pushReceiver != null) {
+                        ClientMain.pushReceiver.resume();
+                        ClientMain.pushReceiverReading = true;
+                    }
                     // Inizializzazione Scanner
                     Scanner scanner = new Scanner(System.in);
                     // Cattura dell'operazione richiesta dall'utente.
@@ -582,9 +882,11 @@ public class ClientMain {
                     ConsoleManage.synchronizedErrPrint("IO error occurred: " + e.toString() + "\n");
             }
             finally {
-                // Attesa terminazione del thread UDP
+                // Attesa terminazione del thread in ascolto delle notifiche
                 try {
-                    listeningUDPThread.join();
+                    if(ClientMain.pushReceiver != null)
+                        ClientMain.pushReceiver.resume(); // Il task in attesa si accorge che il canale è chiuso.
+                    listeningThread.join();
                 } catch (InterruptedException e) {
                     ConsoleManage.synchronizedErrPrint("Error while waiting for the listening thread to finish.\n");
                 }
@@ -2,7 +2,9 @@ import java.util.Scanner;
 
 /**
  * Questa classe è utilizzata unicamente per evitare accavallamenti tra le scritture
- * e le letture su e da console da parte del ClientMain e del ListeningUDPTask.
+ * e le letture su e da console da parte del ClientMain e dei task in ascolto delle notifiche
+ * (ListeningUDPTask e PushReceiverTask). Le letture non tengono il lock mentre attendono l'utente,
+ * così che le notifiche vengano stampate appena arrivano.
  */
 public class ConsoleManage {
     public static synchronized void synchronizedPrint(String message){
@@ -13,7 +15,7 @@ public class ConsoleManage {
         System.err.print(message);
     }
 
-    public static synchronized int synchronizedIntegerRead(String prompt, Scanner scanner){
+    public static int synchronizedIntegerRead(String prompt, Scanner scanner){
         ConsoleManage.synchronizedPrint(prompt);
         int integer = 0;
         boolean isValidInput = false; // Flag per uscire dal ciclo.
@@ -29,7 +31,7 @@ public class ConsoleManage {
         return integer;
     }
 
-    public static synchronized String synchronizedStringRead(String prompt, Scanner scanner){
+    public static String synchronizedStringRead(String prompt, Scanner scanner){
         ConsoleManage.synchronizedPrint("Enter "+ prompt + ": ");
         String inputString = scanner.nextLine();
         // Controlli sulla stringa.
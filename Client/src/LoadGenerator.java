@@ -0,0 +1,99 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Questa è la classe che genera carico sul server per misurarne il throughput e, avviando il server
+ * con -Xlog:gc, la pressione sul garbage collector. Apre più connessioni verso l'indirizzo del
+ * Client_Configuration.txt e su ognuna invia una richiesta alla volta, attendendo la risposta:
+ * - logout: logout senza login, che il server rifiuta con -1. Esercita soltanto lettura, decodifica
+ *   e scrittura della risposta, senza lavoro sugli hotel.
+ * - search: searchHotel di un hotel esistente, con la risposta testuale dell'hotel.
+ * - ranking: searchHotels di una città, con la classifica testuale.
+ *
+ * Va eseguita dalla cartella del progetto, come il client:
+ * java -cp <classi> LoadGenerator [connessioni] [richieste per connessione] [logout|search|ranking]
+ * Alla fine stampa richieste al secondo e latenze (mediana e 99-esimo percentile).
+ */
+public class LoadGenerator {
+    public static void main(String[] args) throws InterruptedException {
+        int nConnections = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int nRequests = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+        String operation = args.length > 2 ? args[2] : "logout";
+        if (!operation.equals("logout") && !operation.equals("search") && !operation.equals("ranking")) {
+            System.out.println("Unknown operation: " + operation + " (logout, search or ranking)");
+            System.exit(1);
+        }
+        long[][] latencies = new long[nConnections][nRequests];
+        CountDownLatch done = new CountDownLatch(nConnections);
+        Thread[] threads = new Thread[nConnections];
+        for (int c = 0; c < nConnections; c++) {
+            long[] connectionLatencies = latencies[c];
+            threads[c] = new Thread(() -> {
+                try {
+                    LoadGenerator.run(operation, connectionLatencies);
+                }
+                catch (IOException e) {
+                    System.out.println("Connection error: " + e.getMessage());
+                }
+                finally {
+                    done.countDown();
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread thread : threads)
+            thread.start();
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+        System.out.printf("%d connections x %d %s requests: %.0f req/s, p50 %.3f ms, p99 %.3f ms%n",
+                nConnections, nRequests, operation, all.length / (elapsed / 1e9),
+                all[all.length / 2] / 1e6, all[(int) (all.length * 0.99)] / 1e6);
+    }
+
+    // Invia le richieste su una connessione e salva la latenza di ognuna.
+    private static void run(String operation, long[] latencies) throws IOException {
+        try (Socket socket = new Socket(ClientFileConfigurationReader.getClientIp(), ClientFileConfigurationReader.getClientPort())) {
+            socket.setTcpNoDelay(true);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            for (int i = 0; i < latencies.length; i++) {
+                long start = System.nanoTime();
+                switch (operation) {
+                    case "logout":
+                        out.writeInt(3);
+                        LoadGenerator.writeString(out, "load");
+                        break;
+                    case "search":
+                        out.writeInt(4);
+                        LoadGenerator.writeString(out, "Hotel Roma 1");
+                        LoadGenerator.writeString(out, "Roma");
+                        break;
+                    default:
+                        out.writeInt(5);
+                        LoadGenerator.writeString(out, "Roma");
+                }
+                out.flush();
+                int output = in.readInt();
+                if (output == 0 && !operation.equals("logout")) // Salto gli hotel della risposta.
+                    in.skipNBytes(in.readInt());
+                latencies[i] = System.nanoTime() - start;
+            }
+            out.writeInt(8); // closeConnection
+            out.flush();
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,121 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Questo è il task che, mentre il client attende un comando dall'utente, legge dalla connessione le
+ * notifiche push e le stampa appena arrivano, come faceva ListeningUDPTask con i messaggi multicast.
+ *
+ * Il server scrive le notifiche soltanto tra una risposta e l'altra, quindi il task legge soltanto
+ * dopo resume, quando il ClientMain ha finito di leggere la risposta precedente. Il primo intero
+ * che non è una notifica è il codice della risposta successiva: il task lo passa al ClientMain, che
+ * lo riceve con takeResponseCode e legge da sé il resto della risposta, e si ferma fino al prossimo
+ * resume.
+ */
+public class PushReceiverTask implements Runnable {
+    private static final int PUSH_FRAME = Integer.MIN_VALUE; // Intero che precede le notifiche push.
+
+    private final SocketChannel server; // Appena il canale viene chiuso il task termina.
+    private final AtomicBoolean logged;
+    private final BlockingQueue<Integer> responseCodes = new LinkedBlockingQueue<>(); // Codici letti dal task per il ClientMain.
+    private boolean reading = false; // True se il task può leggere dal canale (protetto dal lock del task).
+
+    public PushReceiverTask(SocketChannel server, AtomicBoolean logged) {
+        this.server = server;
+        this.logged = logged;
+    }
+
+    // Chiamato dal ClientMain quando non sta leggendo una risposta: il task riprende a leggere.
+    public synchronized void resume() {
+        this.reading = true;
+        this.notifyAll();
+    }
+
+    /**
+     * Restituisce il codice della prossima risposta, letto dal task dopo l'ultimo resume. Da quel
+     * momento il task non legge più e il resto della risposta va letto dal ClientMain.
+     *
+     * @return il codice di risposta, oppure -5 se la comunicazione con il server si è interrotta.
+     */
+    public int takeResponseCode() {
+        try {
+            return this.responseCodes.take();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -5;
+        }
+    }
+
+    public void run() {
+        while (this.server.isOpen()) {
+            synchronized (this) {
+                try {
+                    while (!this.reading && this.server.isOpen())
+                        this.wait();
+                }
+                catch (InterruptedException e) {
+                    break;
+                }
+            }
+            if (!this.server.isOpen())
+                break;
+            int value = this.readInteger();
+            if (value == PUSH_FRAME) {
+                int msgLength = this.readInteger();
+                byte[] msg = msgLength >= 0 ? this.readBytes(msgLength) : null;
+                if (msg == null) {
+                    value = -5;
+                }
+                else {
+                    if (this.logged.get())
+                        ConsoleManage.synchronizedPrint("[Push notification received] >> " + new String(msg, StandardCharsets.UTF_8) + "\n");
+                    continue;
+                }
+            }
+            // Codice di una risposta: lo passo al ClientMain e mi fermo finché non l'ha letta tutta.
+            synchronized (this) {
+                this.reading = false;
+            }
+            this.responseCodes.add(value);
+        }
+        this.responseCodes.add(-5); // Sblocca il ClientMain se sta ancora aspettando una risposta.
+    }
+
+    // Legge un intero dal server, -5 se il canale è stato chiuso.
+    private int readInteger() {
+        byte[] bytes = this.readBytes(Integer.BYTES);
+        return bytes == null ? -5 : ByteBuffer.wrap(bytes).getInt();
+    }
+
+    // Legge nBytes byte dal server, null se il canale è stato chiuso.
+    private byte[] readBytes(int nBytes) {
+        ByteBuffer buffer = ByteBuffer.allocate(nBytes);
+        try {
+            while (buffer.hasRemaining()) {
+                if (this.server.read(buffer) == -1) {
+                    this.server.close();
+                    return null;
+                }
+            }
+            return buffer.array();
+        }
+        catch (IOException e) {
+            // Il canale chiuso dal ClientMain (closeConnection) interrompe la lettura: non è un errore.
+            if (this.server.isOpen()) {
+                ConsoleManage.synchronizedErrPrint("Error receiving push notifications: " + e.getMessage() + "\n");
+                try {
+                    this.server.close();
+                }
+                catch (IOException closeEx) {
+                    ConsoleManage.synchronizedErrPrint("Error closing client channel: " + closeEx.getMessage() + "\n");
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,383 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Questa è la classe che gestisce una connessione quando il server è in modalità async: le letture
+ * e le scritture sono operazioni asincrone di un AsynchronousSocketChannel e proseguono nei
+ * CompletionHandler eseguiti dai thread dell'AsynchronousChannelGroup, senza selector né
+ * interestOps. Per ogni connessione è in corso al più un'operazione alla volta (lettura, scrittura
+ * o autenticazione), quindi lo stato della connessione non è mai usato da due thread insieme.
+ * Protocollo, decoder e operazioni sono gli stessi della modalità nio.
+ */
+public final class AsyncConnection {
+    private static final SharedBufferPool bufferPool = new SharedBufferPool(); // Buffer condivisi da tutte le connessioni.
+    private static final int MAX_HEADER_BYTES = 5 * Integer.BYTES; // Codice di risposta e campi fissi più lunghi (searchHotelsPage con i flag della compressione).
+
+    private final AsynchronousSocketChannel client;
+    private final ObjectAttach objectAttach = new ObjectAttach(); // Stato della connessione, come nella modalità nio.
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private ByteBuffer output = null; // Buffer, in modalità scrittura, delle risposte non ancora inviate; null se vuoto.
+    private Request waiting = null; // Richiesta da eseguire dopo l'invio delle risposte già scritte.
+    private boolean closed = false; // True dopo la chiusura, così che la connessione venga contata una volta sola.
+    // Stato delle notifiche push, protetto dal monitor della connessione. Mentre la connessione attende
+    // soltanto una lettura le notifiche vengono inviate subito da pushWakeup; negli altri casi vengono
+    // inserite da process tra una risposta e l'altra.
+    private boolean reading = false; // True mentre è in corso una lettura e nessun'altra operazione.
+    private boolean pushWriting = false; // True mentre è in corso l'invio di notifiche push durante una lettura.
+    private Integer readResult = null; // Esito di una lettura terminata durante l'invio di notifiche push.
+    private ByteBuffer pushOutput = null; // Buffer delle notifiche push in corso di invio.
+
+    // Prosegue la connessione al termine di una lettura. Le letture e le scritture scadono dopo
+    // IDLE_TIMEOUT_MILLIS senza byte trasferiti: la connessione inattiva viene chiusa.
+    private static final CompletionHandler<Integer, AsyncConnection> READ_HANDLER = new CompletionHandler<Integer, AsyncConnection>() {
+        public void completed(Integer nBytes, AsyncConnection connection) {
+            synchronized (connection) {
+                connection.reading = false;
+                if (connection.pushWriting) { // La connessione prosegue al termine dell'invio delle notifiche push.
+                    connection.readResult = nBytes;
+                    return;
+                }
+            }
+            connection.readCompleted(nBytes);
+        }
+
+        public void failed(Throwable exc, AsyncConnection connection) {
+            if (exc instanceof InterruptedByTimeoutException)
+                ServerMain.connectionReaped();
+            connection.close();
+        }
+    };
+
+    // Prosegue la connessione al termine di una scrittura, completando prima le scritture parziali.
+    private static final CompletionHandler<Integer, AsyncConnection> WRITE_HANDLER = new CompletionHandler<Integer, AsyncConnection>() {
+        public void completed(Integer nBytes, AsyncConnection connection) {
+            if (connection.output.hasRemaining()) {
+                connection.client.write(connection.output, ServerMain.IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, connection, this);
+                return;
+            }
+            connection.output.clear();
+            if (connection.objectAttach.isClosing())
+                connection.close();
+            else
+                connection.process();
+        }
+
+        public void failed(Throwable exc, AsyncConnection connection) {
+            if (exc instanceof InterruptedByTimeoutException)
+                ServerMain.connectionReaped();
+            connection.close();
+        }
+    };
+
+    // Prosegue l'invio delle notifiche push e, al termine, la lettura che si è conclusa nel frattempo.
+    private static final CompletionHandler<Integer, AsyncConnection> PUSH_HANDLER = new CompletionHandler<Integer, AsyncConnection>() {
+        public void completed(Integer nBytes, AsyncConnection connection) {
+            if (connection.pushOutput.hasRemaining()) {
+                connection.client.write(connection.pushOutput, ServerMain.IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, connection, this);
+                return;
+            }
+            AsyncConnection.bufferPool.release(connection.pushOutput);
+            connection.pushOutput = null;
+            Integer readResult;
+            synchronized (connection) {
+                if (connection.reading && !connection.closed && connection.objectAttach.peekPush() != null)
+                    readResult = null; // Altre notifiche arrivate durante l'invio.
+                else {
+                    connection.pushWriting = false;
+                    readResult = connection.readResult;
+                    connection.readResult = null;
+                    if (readResult == null)
+                        return;
+                }
+            }
+            if (readResult == null)
+                connection.writePushes();
+            else
+                connection.readCompleted(readResult);
+        }
+
+        public void failed(Throwable exc, AsyncConnection connection) {
+            AsyncConnection.bufferPool.release(connection.pushOutput);
+            connection.pushOutput = null;
+            connection.close();
+        }
+    };
+
+    public AsyncConnection(AsynchronousSocketChannel client) {
+        this.client = client;
+        this.objectAttach.setPushWakeup(this::pushWakeup);
+    }
+
+    /**
+     * Avvia l'accettazione asincrona delle connessioni: ogni connessione accettata inizia a essere
+     * letta e l'accettazione successiva viene richiesta subito dopo.
+     *
+     * @param server il canale asincrono del server, già associato all'indirizzo.
+     */
+    public static void acceptConnections(AsynchronousServerSocketChannel server) {
+        server.accept(null, new CompletionHandler<AsynchronousSocketChannel, Void>() {
+            public void completed(AsynchronousSocketChannel client, Void attachment) {
+                server.accept(null, this);
+                // Oltre MAX_CONNECTIONS la connessione viene chiusa subito.
+                if (!ServerMain.admitConnection()) {
+                    try {
+                        client.close();
+                    }
+                    catch (IOException e) {
+                        System.err.println("Error closing client channel: " + e.getMessage());
+                    }
+                    return;
+                }
+                System.out.println("Accepted connection from " + client);
+                new AsyncConnection(client).read();
+            }
+
+            public void failed(Throwable exc, Void attachment) {
+                if (server.isOpen()) {
+                    System.out.println("IO error occurred: " + exc.toString() + "\n");
+                    server.accept(null, this);
+                }
+            }
+        });
+    }
+
+    // Avvia la lettura dei prossimi byte del client.
+    private void read() {
+        try {
+            ByteBuffer buffer = this.objectAttach.getDecoder().readBuffer(AsyncConnection.bufferPool);
+            synchronized (this) {
+                this.reading = true;
+            }
+            this.client.read(buffer, ServerMain.IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, this, READ_HANDLER);
+        }
+        catch (IOException e) { // Richiesta troppo grande.
+            this.close();
+            return;
+        }
+        // Le notifiche accodate mentre process era in corso non hanno potuto avviarne l'invio.
+        if (this.objectAttach.peekPush() != null)
+            this.pushWakeup();
+    }
+
+    // Prosegue la connessione al termine di una lettura.
+    private void readCompleted(int nBytes) {
+        if (nBytes == -1) // Il client ha chiuso il canale.
+            this.close();
+        else
+            this.process();
+    }
+
+    /**
+     * Avvisa la connessione che ci sono notifiche push da inviare. Se la connessione sta soltanto
+     * attendendo una lettura l'invio inizia subito, in parallelo alla lettura; altrimenti le
+     * notifiche vengono inserite da process prima della prossima risposta.
+     */
+    private void pushWakeup() {
+        synchronized (this) {
+            if (!this.reading || this.pushWriting || this.closed)
+                return;
+            this.pushWriting = true;
+        }
+        this.writePushes();
+    }
+
+    // Avvia l'invio delle notifiche push in attesa che entrano in un buffer; prosegue in PUSH_HANDLER.
+    private void writePushes() {
+        this.pushOutput = AsyncConnection.bufferPool.acquire();
+        this.putPushes(this.pushOutput);
+        this.pushOutput.flip();
+        this.client.write(this.pushOutput, ServerMain.IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, this, PUSH_HANDLER);
+    }
+
+    // Copia nel buffer le notifiche push in attesa, finché entrano per intero.
+    private void putPushes(ByteBuffer buffer) {
+        byte[] frame;
+        while ((frame = this.objectAttach.peekPush()) != null && frame.length <= buffer.remaining()) {
+            this.objectAttach.pollPush();
+            buffer.put(frame);
+        }
+    }
+
+    // Avvia l'invio delle risposte scritte nel buffer; la connessione prosegue in WRITE_HANDLER.
+    private void write() {
+        this.output.flip();
+        this.client.write(this.output, ServerMain.IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS, this, WRITE_HANDLER);
+    }
+
+    /**
+     * Esegue le richieste complete ricevute dal client e scrive le risposte nel buffer di uscita,
+     * finché non serve un'operazione asincrona: l'invio del buffer pieno, un'autenticazione o la
+     * lettura di altri byte. Le risposte delle richieste eseguite di seguito vengono inviate insieme
+     * (pipelining), come nel Reactor.
+     */
+    private void process() {
+        try {
+            while (true) {
+                if (this.output == null)
+                    this.output = AsyncConnection.bufferPool.acquire();
+                // Prosegue il corpo della risposta in corso.
+                HotelsResponseStream stream = this.objectAttach.getStream();
+                if (stream != null) {
+                    if (!stream.fill(this.output, this.encoder)) {
+                        this.write();
+                        return;
+                    }
+                    this.objectAttach.setStream(null);
+                }
+                this.putPushes(this.output); // Nessuna risposta a metà: le notifiche push precedono la prossima risposta.
+                Request request = this.waiting;
+                this.waiting = null;
+                if (request == null) {
+                    // Le risposte già scritte vengono inviate se manca spazio per l'intestazione della prossima.
+                    if (this.output.remaining() < MAX_HEADER_BYTES) {
+                        this.write();
+                        return;
+                    }
+                    int operation = this.objectAttach.getDecoder().peekOperation();
+                    if (operation != -1 && ServerMain.isRateLimited(operation, this.objectAttach)) { // Oltre il limite di frequenza: la richiesta viene scartata senza decodificarla.
+                        this.objectAttach.getDecoder().skipRequest();
+                        this.writeHeader(operation, ServerMain.RATE_LIMITED);
+                        continue;
+                    }
+                    request = this.objectAttach.getDecoder().nextRequest();
+                }
+                if (request == null) { // Nessuna richiesta completa: invio le risposte scritte oppure leggo altri byte.
+                    this.objectAttach.getDecoder().releaseIfEmpty(AsyncConnection.bufferPool);
+                    if (this.output.position() > 0)
+                        this.write();
+                    else {
+                        AsyncConnection.bufferPool.release(this.output);
+                        this.output = null;
+                        this.read();
+                    }
+                    return;
+                }
+                if (request.getOperation() == 8) { // closeConnection, dopo aver inviato le risposte già scritte.
+                    this.objectAttach.setClosing(true);
+                    if (this.output.position() > 0)
+                        this.write();
+                    else
+                        this.close();
+                    return;
+                }
+                int operation = request.getOperation();
+                // Le risposte già scritte vengono inviate prima di un'autenticazione.
+                if (this.output.position() > 0 && ServerMain.isAuthOperation(operation)) {
+                    this.waiting = request;
+                    this.write();
+                    return;
+                }
+                if (ServerMain.isShed(request)) // Server sovraccarico: operazione costosa rifiutata subito.
+                    this.writeHeader(operation, ServerMain.BUSY);
+                else if (ServerMain.isAuthOperation(operation)) { // Registrazione e login usano BCrypt.
+                    this.submitAuthRequest(request);
+                    return;
+                }
+                else
+                    this.writeHeader(operation, ServerMain.executeRequest(request, this.objectAttach));
+            }
+        }
+        catch (IOException e) { // I byte ricevuti non rispettano il protocollo.
+            this.close();
+        }
+    }
+
+    /**
+     * Affida registrazione o login al ThreadPool di autenticazione; al completamento, se la
+     * connessione non è stata chiusa, il login viene applicato, la risposta viene scritta e la
+     * connessione prosegue nel thread di autenticazione.
+     *
+     * @param request la richiesta di registrazione o login.
+     */
+    private void submitAuthRequest(Request request) {
+        int operation = request.getOperation();
+        try {
+            ServerMain.getAuthThreadPool().execute(() -> {
+                int output = ServerMain.executeAuthRequest(request, this.objectAttach);
+                // Il login viene applicato soltanto se la connessione è ancora aperta: close toglie poi
+                // l'iscrizione alle notifiche push di un login applicato prima della chiusura.
+                synchronized (this) {
+                    if (this.closed)
+                        return;
+                    ServerMain.completeAuthRequest(request, this.objectAttach, output);
+                }
+                this.writeHeader(operation, output);
+                this.process();
+            });
+        }
+        catch (RejectedExecutionException e) {
+            this.writeHeader(operation, ServerMain.overloadedOutput(operation)); // Server sovraccarico.
+            this.process();
+        }
+    }
+
+    /**
+     * Scrive l'intestazione della risposta nello stesso formato della modalità nio; il corpo, se
+     * c'è, viene poi prodotto da process attraverso l'HotelsResponseStream. Il buffer ha almeno
+     * MAX_HEADER_BYTES liberi; il messaggio (badge, token o username) è breve e se non entra viene inviato
+     * in un buffer dedicato.
+     *
+     * @param operation il codice dell'operazione.
+     * @param output il risultato dell'operazione.
+     */
+    private void writeHeader(int operation, int output) {
+        this.output.putInt(output);
+        if (output == 0 && operation == 11) {
+            this.output.putInt(this.objectAttach.getRankingEpoch());
+            this.output.putInt(this.objectAttach.getRankingSize());
+        }
+        if (output == 0 && (operation == 4 || operation == 5 || operation == 11))
+            this.objectAttach.getStream().putLengthHeader(this.output, this.objectAttach.hasCapability(ServerMain.CAPABILITY_COMPRESSION));
+        else if (output == 0 && operation == 9)
+            this.objectAttach.getStream().putCountHeader(this.output, this.objectAttach.hasCapability(ServerMain.CAPABILITY_COMPRESSION));
+        else if (output == 0 && operation == 14) { // Versione e funzionalità concordate con l'handshake.
+            this.output.putInt(this.objectAttach.getProtocolVersion());
+            this.output.putInt(this.objectAttach.getCapabilities());
+        }
+        else if (output == 0 && (operation == 7 || operation == 12 || operation == 13)) { // Badge, token o username della sessione.
+            byte[] messagge = this.objectAttach.getMessagge().getBytes(StandardCharsets.UTF_8);
+            this.objectAttach.setMessagge("");
+            if (this.output.remaining() < Integer.BYTES + messagge.length) {
+                ByteBuffer bigger = ByteBuffer.allocate(this.output.position() + Integer.BYTES + messagge.length);
+                this.output.flip();
+                bigger.put(this.output);
+                AsyncConnection.bufferPool.release(this.output);
+                this.output = bigger;
+            }
+            this.output.putInt(messagge.length);
+            this.output.put(messagge);
+        }
+    }
+
+    // Chiude la connessione e restituisce al pool i buffer che stava usando.
+    private void close() {
+        synchronized (this) {
+            if (this.closed)
+                return;
+            this.closed = true;
+        }
+        ServerMain.connectionClosed();
+        try {
+            this.client.close();
+        }
+        catch (IOException e) {
+            System.err.println("Error closing client channel: " + e.getMessage());
+        }
+        this.objectAttach.getDecoder().release(AsyncConnection.bufferPool);
+        if (this.output != null) {
+            AsyncConnection.bufferPool.release(this.output);
+            this.output = null;
+        }
+        this.objectAttach.setStream(null);
+        this.objectAttach.releaseDeflater();
+        ServerMain.unsubscribePush(this.objectAttach);
+    }
+}
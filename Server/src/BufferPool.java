@@ -0,0 +1,36 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Questa è la classe che mantiene un insieme di ByteBuffer diretti riutilizzabili. Ogni reactor
+ * possiede il proprio pool e lo usa soltanto dal proprio thread, quindi non è sincronizzata.
+ * Le connessioni prendono un buffer quando hanno byte da ricevere o da inviare e lo restituiscono
+ * appena il buffer si svuota, così che le connessioni inattive non occupino memoria.
+ */
+public class BufferPool {
+    public static final int BUFFER_SIZE = 16 * 1024; // Dimensione di ciascun buffer del pool.
+    private static final int MAX_POOLED_BUFFERS = 256; // Numero massimo di buffer liberi mantenuti dal pool.
+
+    private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+
+    // Restituisce un buffer diretto vuoto di BUFFER_SIZE byte, allocandolo solo se il pool è vuoto.
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = this.freeBuffers.pollFirst();
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        return buffer;
+    }
+
+    /**
+     * Restituisce un buffer al pool. I buffer che non provengono dal pool (ad esempio quelli
+     * allocati per richieste più grandi di BUFFER_SIZE) vengono lasciati al garbage collector.
+     *
+     * @param buffer il buffer da restituire.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.isDirect() && buffer.capacity() == BUFFER_SIZE && this.freeBuffers.size() < MAX_POOLED_BUFFERS) {
+            buffer.clear();
+            this.freeBuffers.addFirst(buffer);
+        }
+    }
+}
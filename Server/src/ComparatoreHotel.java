@@ -3,8 +3,6 @@ import java.util.Comparator;
 public class ComparatoreHotel implements Comparator<Hotel>{
 
     public int compare (Hotel a, Hotel b) {
-        /*Hotel a = ServerMain.getHotelFromId(h1);
-        Hotel b = ServerMain.getHotelFromId(id2);*/
         // Calcolo media ponderata su tutte le recensioni dei due hotel in base alla recenza.
         double a_weightedAverage = a.getWeightedAverageReviews();
         double b_weightedAverage = b.getWeightedAverageReviews();
@@ -26,5 +24,3 @@ public class ComparatoreHotel implements Comparator<Hotel>{
         }
     }
 }
-
-
@@ -0,0 +1,275 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Questa è la classe che rappresenta il task lato server che gestisce una singola connessione
+ * quando il server è in modalità virtual: ogni connessione accettata ha il proprio thread virtuale,
+ * che legge le richieste, le esegue e scrive le risposte con chiamate bloccanti. Il protocollo, il
+ * decoder delle richieste e le operazioni eseguite sono gli stessi della modalità nio, così che le
+ * due modalità siano confrontabili sugli stessi client.
+ */
+public class ConnectionTask implements Runnable {
+    private static final SharedBufferPool bufferPool = new SharedBufferPool(); // Buffer condivisi da tutte le connessioni.
+
+    private final SocketChannel client; // Il SocketChannel bloccante del client.
+    private static final ThreadFactory PUSH_THREADS = VirtualThreads.factory("Push-"); // Thread virtuali che inviano le notifiche push.
+    private final Set<SocketChannel> connections; // Connessioni attive del server, chiuse alla terminazione.
+    private final ObjectAttach objectAttach = new ObjectAttach(); // Stato della connessione, come nella modalità nio.
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private ByteBuffer output = null; // Buffer, in modalità scrittura, delle risposte non ancora inviate; null se vuoto.
+    // Tenuto mentre si scrive nel buffer delle risposte: le notifiche push non si inseriscono mai a metà di una risposta.
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final AtomicBoolean pushScheduled = new AtomicBoolean(false); // True se un thread virtuale sta per inviare le notifiche push.
+
+    public ConnectionTask(SocketChannel client, Set<SocketChannel> connections) {
+        this.client = client;
+        this.connections = connections;
+        // Le notifiche push arrivate mentre il thread della connessione è bloccato in lettura vengono
+        // inviate da un altro thread virtuale, così che chi le accoda non si blocchi su un client lento.
+        this.objectAttach.setPushWakeup(() -> {
+            if (this.pushScheduled.compareAndSet(false, true))
+                ConnectionTask.PUSH_THREADS.newThread(this::deliverPushes).start();
+        });
+    }
+
+    public long getLastActivity() {
+        return this.objectAttach.getLastActivity();
+    }
+
+    // Chiude la connessione perché inattiva; il thread virtuale esce dalla lettura bloccata e rilascia le risorse.
+    public void reap() {
+        if (!this.client.isOpen())
+            return;
+        ServerMain.connectionReaped();
+        try {
+            this.client.close();
+        }
+        catch (IOException e) {
+            System.err.println("Error closing client channel: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Affida registrazione o login al ThreadPool di autenticazione e ne attende il risultato. Il
+     * ThreadPool limita il numero di BCrypt eseguiti contemporaneamente anche in questa modalità,
+     * così che un picco di login non occupi tutti i thread su cui girano i thread virtuali.
+     *
+     * @param request la richiesta di registrazione o login.
+     * @return il risultato dell'operazione, ServerMain.overloadedOutput se la coda è piena.
+     * @throws IOException se il thread viene interrotto durante l'attesa.
+     */
+    private int executeAuthRequest(Request request) throws IOException {
+        try {
+            Future<Integer> result = ServerMain.getAuthThreadPool().submit(() -> ServerMain.executeAuthRequest(request, this.objectAttach));
+            int output = result.get();
+            // Il login viene applicato da questo thread, così che la chiusura in run lo trovi sempre.
+            ServerMain.completeAuthRequest(request, this.objectAttach, output);
+            return output;
+        }
+        catch (RejectedExecutionException e) {
+            return ServerMain.overloadedOutput(request.getOperation()); // Server sovraccarico.
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for authentication");
+        }
+        catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // Garantisce che nel buffer delle risposte ci siano almeno nBytes liberi, inviando al client quelli già scritti.
+    private void reserve(int nBytes) throws IOException {
+        if (this.output == null)
+            this.output = ConnectionTask.bufferPool.acquire();
+        else if (this.output.remaining() < nBytes)
+            this.send();
+    }
+
+    // Invia al client tutti i byte presenti nel buffer delle risposte e lo svuota.
+    private void send() throws IOException {
+        this.output.flip();
+        while (this.output.hasRemaining()) {
+            this.client.write(this.output);
+            this.objectAttach.setLastActivity(System.currentTimeMillis());
+        }
+        this.output.clear();
+    }
+
+    // Scrive nel buffer delle risposte le notifiche push in attesa; va chiamato tra una risposta e l'altra.
+    private void writePushes() throws IOException {
+        byte[] frame;
+        while ((frame = this.objectAttach.pollPush()) != null) {
+            for (int offset = 0; offset < frame.length; ) {
+                this.reserve(1);
+                int nBytes = Math.min(this.output.remaining(), frame.length - offset);
+                this.output.put(frame, offset, nBytes);
+                offset += nBytes;
+            }
+        }
+    }
+
+    // Invia le notifiche push accodate mentre il thread della connessione era in lettura.
+    private void deliverPushes() {
+        this.writeLock.lock();
+        try {
+            this.pushScheduled.set(false);
+            if (this.client.isOpen())
+                this.flush();
+        }
+        catch (IOException e) {
+            // La connessione è stata chiusa: il suo thread rilascia le risorse.
+        }
+        finally {
+            this.writeLock.unlock();
+        }
+    }
+
+    // Invia al client le notifiche push in attesa e le risposte non ancora inviate, poi restituisce il buffer al pool.
+    private void flush() throws IOException {
+        this.writePushes();
+        if (this.output == null)
+            return;
+        if (this.output.position() > 0)
+            this.send();
+        ConnectionTask.bufferPool.release(this.output);
+        this.output = null;
+    }
+
+    /**
+     * Scrive la risposta di una richiesta nello stesso formato della modalità nio: il codice di
+     * risposta, gli eventuali campi dell'operazione e il corpo prodotto dall'HotelsResponseStream.
+     * I byte vengono inviati quando il buffer si riempie, quindi l'intestazione parte insieme al
+     * primo pezzo del corpo.
+     *
+     * @param operation il codice dell'operazione.
+     * @param output il risultato dell'operazione.
+     * @throws IOException se la scrittura sul canale fallisce.
+     */
+    private void writeResponse(int operation, int output) throws IOException {
+        this.writePushes(); // Le notifiche push in attesa precedono la risposta.
+        this.reserve(5 * Integer.BYTES); // Codice di risposta e campi fissi più lunghi (searchHotelsPage con i flag della compressione).
+        this.output.putInt(output);
+        if (output == 0 && operation == 11) {
+            this.output.putInt(this.objectAttach.getRankingEpoch());
+            this.output.putInt(this.objectAttach.getRankingSize());
+        }
+        if (output == 0 && (operation == 4 || operation == 5 || operation == 11))
+            this.objectAttach.getStream().putLengthHeader(this.output, this.objectAttach.hasCapability(ServerMain.CAPABILITY_COMPRESSION));
+        else if (output == 0 && operation == 9)
+            this.objectAttach.getStream().putCountHeader(this.output, this.objectAttach.hasCapability(ServerMain.CAPABILITY_COMPRESSION));
+        else if (output == 0 && operation == 14) { // Versione e funzionalità concordate con l'handshake.
+            this.output.putInt(this.objectAttach.getProtocolVersion());
+            this.output.putInt(this.objectAttach.getCapabilities());
+        }
+        else if (output == 0 && (operation == 7 || operation == 12 || operation == 13)) { // Badge, token o username della sessione.
+            byte[] messagge = this.objectAttach.getMessagge().getBytes(StandardCharsets.UTF_8);
+            this.objectAttach.setMessagge("");
+            this.reserve(Integer.BYTES);
+            this.output.putInt(messagge.length);
+            for (int offset = 0; offset < messagge.length; ) {
+                this.reserve(1);
+                int nBytes = Math.min(this.output.remaining(), messagge.length - offset);
+                this.output.put(messagge, offset, nBytes);
+                offset += nBytes;
+            }
+        }
+        HotelsResponseStream stream = this.objectAttach.getStream();
+        if (stream != null) {
+            // Produco il corpo un buffer alla volta, inviando ciascuno prima di produrre il successivo.
+            while (!stream.fill(this.output, this.encoder))
+                this.send();
+            this.objectAttach.setStream(null);
+        }
+    }
+
+    /**
+     * Esegue, nell'ordine di arrivo, tutte le richieste complete ricevute dal client e invia le
+     * risposte insieme (pipelining), come fa il Reactor nella modalità nio.
+     *
+     * @return false se il client ha chiesto la chiusura della connessione.
+     * @throws IOException se i byte ricevuti non rispettano il protocollo o la scrittura fallisce.
+     */
+    private boolean processRequests() throws IOException {
+        int operation;
+        while ((operation = this.objectAttach.getDecoder().peekOperation()) != -1) {
+            if (ServerMain.isRateLimited(operation, this.objectAttach)) { // Oltre il limite di frequenza: la richiesta viene scartata senza decodificarla.
+                this.objectAttach.getDecoder().skipRequest();
+                this.writeResponse(operation, ServerMain.RATE_LIMITED);
+                continue;
+            }
+            Request request = this.objectAttach.getDecoder().nextRequest();
+            if (request.getOperation() == 8) { // closeConnection, dopo aver inviato le risposte già scritte.
+                this.flush();
+                return false;
+            }
+            int output;
+            if (ServerMain.isShed(request)) // Server sovraccarico: operazione costosa rifiutata subito.
+                output = ServerMain.BUSY;
+            else if (ServerMain.isAuthOperation(request.getOperation())) { // Registrazione e login usano BCrypt.
+                this.flush(); // Le risposte precedenti non attendono l'autenticazione.
+                output = this.executeAuthRequest(request);
+            }
+            else
+                output = ServerMain.executeRequest(request, this.objectAttach);
+            this.writeResponse(request.getOperation(), output);
+        }
+        this.objectAttach.getDecoder().releaseIfEmpty(ConnectionTask.bufferPool);
+        this.flush();
+        return true;
+    }
+
+    public void run() {
+        try {
+            // La lettura si blocca finché il client non invia altri byte: il thread virtuale viene sospeso senza occupare un thread di sistema.
+            while (this.objectAttach.getDecoder().readFrom(this.client, ConnectionTask.bufferPool) != -1) {
+                this.objectAttach.setLastActivity(System.currentTimeMillis());
+                this.writeLock.lock();
+                try {
+                    if (!this.processRequests())
+                        break;
+                }
+                finally {
+                    this.writeLock.unlock();
+                }
+            }
+        }
+        catch (IOException e) {
+            // Il client ha chiuso la connessione, ha violato il protocollo o il server sta terminando.
+        }
+        finally {
+            ServerMain.unsubscribePush(this.objectAttach);
+            this.objectAttach.getDecoder().release(ConnectionTask.bufferPool);
+            this.writeLock.lock();
+            try {
+                if (this.output != null)
+                    ConnectionTask.bufferPool.release(this.output);
+                this.output = null;
+            }
+            finally {
+                this.writeLock.unlock();
+            }
+            this.objectAttach.setStream(null);
+            this.objectAttach.releaseDeflater();
+            try {
+                this.client.close();
+            }
+            catch (IOException e) {
+                System.err.println("Error closing client channel: " + e.getMessage());
+            }
+            this.connections.remove(this.client);
+            ServerMain.connectionClosed();
+        }
+    }
+}
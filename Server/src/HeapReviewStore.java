@@ -0,0 +1,25 @@
+/**
+ * Questa è la classe che tiene le recensioni codificate di un hotel in un array di long nello heap,
+ * che cresce del 50% quando è pieno.
+ */
+public class HeapReviewStore extends ReviewStore {
+    private static final long[] EMPTY = new long[0];
+
+    private volatile long[] reviews = EMPTY;
+
+    protected void put(int i, long packed) {
+        long[] current = this.reviews;
+        if (i == current.length) {
+            long[] grown = new long[Math.max(4, i + (i >> 1))];
+            System.arraycopy(current, 0, grown, 0, i);
+            grown[i] = packed;
+            this.reviews = grown; // Pubblico l'array prima del nuovo size.
+        }
+        else
+            current[i] = packed;
+    }
+
+    protected long packedAt(int i) {
+        return this.reviews[i];
+    }
+}
@@ -1,7 +1,5 @@
+import com.google.gson.annotations.JsonAdapter;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Questa è la classe che rappresenta gli Hotel effettivamente utilizzata dal sistema.
@@ -13,9 +11,19 @@ public class Hotel {
     private final String city;
     private String phone;
     private ArrayList<String> services;
-    private ConcurrentHashMap<String, Review> ratings;
+    @JsonAdapter(ReviewStore.JsonAdapter.class)
+    private ReviewStore ratings; // Recensioni in forma compatta, serializzate come la vecchia mappa id -> recensione.
 
     private Double weightedAverageReviews = null; // Campo aggiunto per memorizzare il valore medio ponderato delle recensioni
+    private transient long weightedAverageDay = -1; // Giorno in cui è stata calcolata weightedAverageReviews.
+    private transient int version = 0; // Incrementata a ogni nuova recensione e a ogni cambio di giorno, invalida le codifiche in cache.
+    private transient byte[][] encodings = new byte[3][]; // Codifiche dell'hotel per formato di risposta, valide per la versione corrente.
+    private transient int[] oversizeVersions = {-1, -1, -1}; // Per formato, versione in cui la codifica è risultata troppo grande per la cache.
+    private transient long encodingsDay = Review.currentDay(); // Giorno a cui si riferiscono le codifiche in cache.
+    // Somma dei voti medi delle recensioni pesati al giorno baseDay: la media pesata si ottiene in O(1)
+    // moltiplicandola per il decadimento dei giorni trascorsi da baseDay e dividendo per il numero di recensioni.
+    private transient double decayedSum = 0;
+    private transient long baseDay = 0; // Giorno, dal 1 gennaio 1970, a cui si riferisce decayedSum.
     
     public Hotel(String id, String name, String description, String city, String phone, ArrayList<String> services) {
         this.id = id;
@@ -24,17 +32,19 @@ public class Hotel {
         this.city = city;
         this.phone = phone;
         this.services = services;
-        this.ratings = new ConcurrentHashMap<String, Review>();
+        this.ratings = ReviewStore.create();
     }
 
-    public Hotel(String id, String name, String description, String city, String phone, ArrayList<String> services, ConcurrentHashMap<String, Review> ratings) {
+    public Hotel(String id, String name, String description, String city, String phone, ArrayList<String> services, ReviewStore ratings) {
         this.id = id;
         this.name = name;
         this.description = description;
         this.city = city;
         this.phone = phone;
         this.services = services;
-        this.ratings = ratings;
+        this.ratings = ratings != null ? ratings : ReviewStore.create();
+        for (int i = 0; i < this.ratings.size(); i++)
+            this.accumulate(this.ratings.get(i));
     }
 
     public String getId() {
@@ -61,36 +71,55 @@ public class Hotel {
         return services;
     }
 
-    public ConcurrentHashMap<String, Review> getRatings() {
+    public ReviewStore getRatings() {
         return ratings;
     }
 
 
+    /**
+     * Aggiunge una recensione a decayedSum. Se la recensione è più recente di baseDay, la somma viene
+     * prima riportata al giorno della recensione, così che tutti i pesi restino minori o uguali a 1
+     * e la somma non possa andare in overflow.
+     *
+     * @param review la recensione da aggiungere.
+     */
+    private void accumulate(Review review) {
+        long day = review.getDay();
+        if (day > this.baseDay) {
+            this.decayedSum *= Review.decay(day - this.baseDay);
+            this.baseDay = day;
+        }
+        this.decayedSum += review.getAverageVote() * Review.decay(this.baseDay - day);
+    }
+
     /**
      * Metodo che calcola media pesata delle recensioni di un Hotel. In particolare
      * moltiplica ciascuna recensione per il suo peso e poi fa una media aritmetica.
+     * Il peso e^(-giorni/300) si fattorizza, quindi la somma pesata è mantenuta da accumulate e il
+     * calcolo non scorre le recensioni. I giorni trascorsi sono contati tra i giorni di calendario
+     * (UTC) della recensione e del calcolo.
      *
      * @return doble che rappresenta la media pesata calcolata, o 0 se non ci sono recensioni associate all'hotel.
      */
     private double weightedAverageCalculationReviews() {
-        Collection<Review> reviews = this.ratings.values();
-        if (reviews.isEmpty()) {
+        int nReviews = this.ratings.size();
+        if (nReviews == 0) {
             return 0;
         }
-        double weightedSum = 0;
-        for (Review review : reviews) {
-            double weight = review.getWeightReview();
-            double averageRatingReview = (review.getPositionVote() + review.getPriceVote() + review.getCleanlinessVote() + review.getServiceVote() + review.getVotoComplessivo())/5.0;
-            weightedSum +=  averageRatingReview * weight;
-        }
-
-        return weightedSum / reviews.size();
+        return this.decayedSum * Review.decay(Review.currentDay() - this.baseDay) / nReviews;
     }
 
-    // Ritorna il valore della media pesata delle recensioni dell'Hotel.
-    public double getWeightedAverageReviews() {
-        if (weightedAverageReviews == null) { // Se il valore non è ancora stato calcolato, lo calcola
+    /**
+     * Ritorna il valore della media pesata delle recensioni dell'Hotel. Il valore viene ricalcolato
+     * dopo una nuova recensione e al cambio di giorno, perché il peso delle recensioni diminuisce
+     * ogni giorno. Il decadimento di un giorno moltiplica le medie di tutti gli hotel per lo stesso
+     * fattore, quindi non cambia il loro ordine nelle classifiche.
+     */
+    public synchronized double getWeightedAverageReviews() {
+        long today = Review.currentDay();
+        if (weightedAverageReviews == null || weightedAverageDay != today) { // Se il valore non è ancora stato calcolato o è di un altro giorno, lo calcola
             weightedAverageReviews = weightedAverageCalculationReviews();
+            weightedAverageDay = today;
         }
         return weightedAverageReviews;
     }
@@ -101,20 +130,84 @@ public class Hotel {
     }
     
     // Aggiunge una review ad un hotel.
-    public void addReview(int[] scores){
+    public synchronized void addReview(int[] scores){
         Review review = new Review(scores[0], scores[1], scores[2], scores[3],scores[4]);
-        this.ratings.put(Integer.toString(review.getId()), review);
+        this.ratings.add(review);
+        this.accumulate(review);
         this.weightedAverageReviews = null; // Metto il valore della media ponderata a null così da dover essere ricalcolato quando necessario.
+        this.version++;
+        this.encodings = new byte[3][]; // Le codifiche in cache contengono la recensione e la media precedenti.
+    }
+
+    /**
+     * Invalida le codifiche in cache se sono state calcolate in un giorno precedente: contengono la
+     * media pesata, che diminuisce ogni giorno anche senza nuove recensioni.
+     */
+    private void expireEncodingsIfNewDay() {
+        long today = Review.currentDay();
+        if (today != this.encodingsDay) {
+            this.encodingsDay = today;
+            this.version++;
+            this.encodings = new byte[3][];
+        }
+    }
+
+    // Restituisce la versione corrente dell'hotel, da leggere prima di calcolarne una codifica.
+    public synchronized int getVersion() {
+        this.expireEncodingsIfNewDay();
+        return this.version;
+    }
+
+    // Restituisce la codifica in cache dell'hotel nel formato di risposta indicato, null se non è presente.
+    public synchronized byte[] getEncoding(int responseFormat) {
+        this.expireEncodingsIfNewDay();
+        return this.encodings[responseFormat];
+    }
+
+    /**
+     * Mette in cache la codifica dell'hotel in un formato di risposta, soltanto se nel frattempo
+     * non sono state aggiunte recensioni.
+     *
+     * @param responseFormat il formato della codifica.
+     * @param version la versione dell'hotel letta prima di calcolare la codifica.
+     * @param encoding la codifica dell'hotel.
+     */
+    public synchronized void setEncoding(int responseFormat, int version, byte[] encoding) {
+        if (this.version == version)
+            this.encodings[responseFormat] = encoding;
+    }
+
+    // True se la codifica dell'hotel nel formato indicato è già risultata troppo grande per la cache nella versione corrente.
+    public synchronized boolean isOversize(int responseFormat) {
+        this.expireEncodingsIfNewDay();
+        return this.oversizeVersions[responseFormat] == this.version;
+    }
+
+    // Ricorda che nella versione indicata la codifica è troppo grande per la cache; una nuova versione lo dimentica.
+    public synchronized void setOversize(int responseFormat, int version) {
+        if (this.version == version)
+            this.oversizeVersions[responseFormat] = version;
+    }
+
+    /**
+     * Restituisce la parte iniziale della rappresentazione testuale dell'hotel, fino all'apertura
+     * delle recensioni. È usata anche da HotelsResponseStream, che invia le recensioni una alla volta.
+     *
+     * @param weightedAverage la media pesata da mostrare.
+     * @return l'intestazione della rappresentazione testuale.
+     */
+    public String toStringHeader(double weightedAverage) {
+        return "Hotel{"+ "name=" + name + " weightedAverage=" + weightedAverage + ", description=" + description + ", city=" + city + ", phone=" + phone + ", services=" + services.toString() + ", ratings={";
     }
 
     @Override
     public String toString() {
-        String risp = "Hotel{"+ "name=" + name + " weightedAverage=" + this.getWeightedAverageReviews() + ", description=" + description + ", city=" + city + ", phone=" + phone + ", services=" + services.toString() + ", ratings={";
-        for(Map.Entry<String, Review> entry : this.ratings.entrySet()) {
-            risp = risp + "{" + entry.getValue().toString() + "}";
+        StringBuilder risp = new StringBuilder(this.toStringHeader(this.getWeightedAverageReviews()));
+        for(int i = 0; i < this.ratings.size(); i++) {
+            risp.append('{').append(this.ratings.get(i).toString()).append('}');
         }
-        risp = risp + "}";
-        return risp;
+        risp.append('}');
+        return risp.toString();
     }
 
 }
@@ -0,0 +1,495 @@
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Questa è la classe che produce in modo incrementale la parte di una risposta che contiene degli
+ * hotel (searchHotel, searchHotels, searchHotelBatch e searchHotelsPage), in formato testuale o
+ * binario. Il Reactor le chiede un buffer alla volta, soltanto quando i precedenti sono stati
+ * inviati, così che la memoria occupata da una risposta non dipenda dal numero di recensioni.
+ *
+ * Il numero di byte della risposta deve essere noto prima di inviarne l'inizio: per questo il numero
+ * di recensioni e la media pesata di ogni hotel vengono fissati alla creazione e ne vengono inviate
+ * esattamente quel numero. Le recensioni di un hotel non vengono mai rimosse e i loro voti vanno da
+ * 0 a 5 (controllati da insertReview; ReviewStore accetta soltanto voti di una cifra), quindi la loro rappresentazione testuale ha lunghezza costante
+ * e quella calcolata alla creazione coincide con quella inviata.
+ *
+ * Le codifiche degli hotel non più grandi di RESPONSE_CACHE_MAX_HOTEL_BYTES vengono messe in cache
+ * nell'hotel stesso, per formato, e invalidate da Hotel.addReview: le richieste successive copiano
+ * soltanto i byte già codificati. Una classifica è composta dalle codifiche dei suoi hotel, quindi
+ * una nuova recensione invalida soltanto quella dell'hotel recensito. Le codifiche mancanti vengono
+ * calcolate durante la creazione dello stream, quindi nel thread che esegue la richiesta (il
+ * reactor in modalità nio): per limitare questo lavoro una risposta codifica al massimo
+ * CACHE_FILL_BYTES_PER_RESPONSE byte, e gli altri hotel mancanti vengono prodotti durante l'invio e
+ * messi in cache dalle richieste successive. Gli hotel troppo grandi per la cache vengono ricordati
+ * (Hotel.setOversize) così che non vengano misurati di nuovo a ogni richiesta.
+ *
+ * Nel formato binario un hotel è codificato come: nome, descrizione, città e telefono come stringhe
+ * (lunghezza e byte UTF-8), il numero di servizi seguito dai servizi, la media pesata come double e
+ * il numero di recensioni; con BINARY_FORMAT_WITH_REVIEWS seguono i cinque voti interi di ciascuna
+ * recensione (complessivo, posizione, pulizia, servizio, prezzo). Una classifica binaria è preceduta
+ * dal numero di hotel.
+ *
+ * Se la connessione ha concordato la compressione, una risposta grande può essere compressa con
+ * compress prima dell'invio: lo stream produce allora la risposta a pezzi di COMPRESSION_CHUNK_BYTES,
+ * ciascuno compresso con SYNC_FLUSH e inviato come blocco (lunghezza e byte compressi), così che
+ * la memoria usata e il lavoro per ogni chiamata di fill restino limitati anche per le risposte
+ * grandi. L'intestazione scritta da putLengthHeader (putCountHeader per searchHotelBatch) segnala la compressione e contiene la lunghezza
+ * originale: il client legge blocchi finché non ha decompresso tutti i byte.
+ */
+public class HotelsResponseStream {
+    private static final int CACHE_FILL_BYTES_PER_RESPONSE = 4 * ServerMain.RESPONSE_CACHE_MAX_HOTEL_BYTES; // Byte codificati al massimo da una risposta per riempire la cache.
+    public static final int SINGLE = 0; // Un solo hotel (searchHotel).
+    public static final int RANKING = 1; // Una classifica o una sua pagina (searchHotels e searchHotelsPage).
+    public static final int BATCH = 2; // Un esito per hotel, seguito dall'hotel se trovato (searchHotelBatch).
+
+    private final int kind;
+    private final List<Hotel> hotels; // Hotel da inviare; per BATCH null indica un hotel non trovato.
+    private final int firstPosition; // Posizione in classifica del primo hotel, mostrata nel formato testuale di RANKING.
+    private final boolean binary;
+    private final boolean includeReviews; // Solo formato binario: true se vanno inviati i voti delle recensioni.
+    private final double[] averages; // Media pesata di ogni hotel al momento della creazione.
+    private final int[] reviewCounts; // Numero di recensioni di ogni hotel al momento della creazione.
+    private final int[] hotelLengths; // Byte della codifica di ogni hotel.
+    private final byte[][] cachedHotels; // Codifiche in cache degli hotel (null per quelli da codificare durante l'invio).
+    public static final int COMPRESSION_CHUNK_BYTES = 16 * 1024; // Byte non compressi di ogni blocco di una risposta compressa.
+
+    private final int length; // Byte della risposta (prima della compressione).
+    private Deflater deflater = null; // Deflater della connessione, se la risposta è compressa.
+    private ByteBuffer plainChunk = null; // Prossimo pezzo non compresso della risposta compressa.
+    private byte[] compressedChunk = null; // Blocco compresso: lunghezza seguita dai byte compressi.
+    private ByteBuffer compressedPending = null; // Blocco compresso non ancora entrato nei buffer.
+    private boolean plainDone = false; // True quando l'ultimo pezzo non compresso è stato prodotto.
+
+    private int index; // Hotel corrente (-1 per il numero di hotel che precede una classifica binaria).
+    private int step; // Passo corrente nella codifica dell'hotel (-1 per esito e lunghezza di BATCH).
+    private int servicesIndex = 0; // Prossimo servizio da inviare (formato binario).
+    private int reviewIndex = 0; // Prossima recensione dell'hotel corrente da inviare.
+    private CharBuffer pending = null; // Testo in corso di codifica, non ancora entrato nei buffer.
+    private ByteBuffer pendingBytes = null; // Codifica in cache in corso di copia, non ancora entrata nei buffer.
+
+    /**
+     * @param kind SINGLE, RANKING o BATCH.
+     * @param hotels gli hotel da inviare, nell'ordine di invio.
+     * @param firstPosition la posizione in classifica del primo hotel (da 1), usata solo da RANKING.
+     * @param responseFormat il formato delle risposte scelto dalla connessione.
+     */
+    public HotelsResponseStream(int kind, List<Hotel> hotels, int firstPosition, int responseFormat) {
+        this(kind, hotels, firstPosition, responseFormat, true);
+    }
+
+    private HotelsResponseStream(int kind, List<Hotel> hotels, int firstPosition, int responseFormat, boolean useCache) {
+        this.kind = kind;
+        this.hotels = hotels;
+        this.firstPosition = firstPosition;
+        this.binary = responseFormat != ObjectAttach.TEXT_FORMAT;
+        this.includeReviews = responseFormat == ObjectAttach.BINARY_FORMAT_WITH_REVIEWS;
+        this.averages = new double[hotels.size()];
+        this.reviewCounts = new int[hotels.size()];
+        this.hotelLengths = new int[hotels.size()];
+        this.cachedHotels = new byte[hotels.size()][];
+        this.index = (kind == RANKING && this.binary) ? -1 : 0;
+        this.step = kind == BATCH ? -1 : 0;
+        int total = this.index == -1 ? Integer.BYTES : 0;
+        int cacheFillBytes = useCache ? CACHE_FILL_BYTES_PER_RESPONSE : 0; // Byte che la risposta può ancora codificare per la cache.
+        for (int i = 0; i < hotels.size(); i++) {
+            Hotel hotel = hotels.get(i);
+            if (kind == BATCH)
+                total += Integer.BYTES; // Esito.
+            if (hotel == null)
+                continue;
+            if (useCache) {
+                byte[] encoding = hotel.getEncoding(responseFormat);
+                if (encoding == null && cacheFillBytes > 0 && !hotel.isOversize(responseFormat)) {
+                    encoding = cachedEncoding(hotel, responseFormat);
+                    cacheFillBytes -= encoding == null ? 0 : encoding.length;
+                }
+                this.cachedHotels[i] = encoding;
+            }
+            if (this.cachedHotels[i] != null) {
+                this.hotelLengths[i] = this.cachedHotels[i].length;
+                if (kind == RANKING && !this.binary)
+                    this.hotelLengths[i] += utf8Length(this.textPrefix(i)) + 1; // Posizione e "\n".
+                total += this.hotelLengths[i] + (kind == BATCH ? Integer.BYTES : 0);
+                continue;
+            }
+            this.averages[i] = hotel.getWeightedAverageReviews();
+            this.reviewCounts[i] = hotel.get_nReview();
+            this.hotelLengths[i] = this.binary ? this.binaryLength(i) : this.textLength(i);
+            total += this.hotelLengths[i] + (kind == BATCH ? Integer.BYTES : 0);
+        }
+        this.length = total;
+    }
+
+    /**
+     * Calcola la codifica di un hotel (come per searchHotel) che manca dalla cache dell'hotel e ve
+     * la mette.
+     *
+     * @param hotel l'hotel da codificare.
+     * @param responseFormat il formato della codifica.
+     * @return la codifica dell'hotel, null se supera RESPONSE_CACHE_MAX_HOTEL_BYTES e va quindi prodotta durante l'invio.
+     */
+    private static byte[] cachedEncoding(Hotel hotel, int responseFormat) {
+        int version = hotel.getVersion(); // Letta prima della codifica: se cambia nel frattempo la codifica non va in cache.
+        HotelsResponseStream stream = new HotelsResponseStream(SINGLE, Collections.singletonList(hotel), 1, responseFormat, false);
+        if (stream.getLength() > ServerMain.RESPONSE_CACHE_MAX_HOTEL_BYTES) {
+            hotel.setOversize(responseFormat, version);
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(stream.getLength());
+        stream.fill(buffer, StandardCharsets.UTF_8.newEncoder());
+        hotel.setEncoding(responseFormat, version, buffer.array());
+        return buffer.array();
+    }
+
+    // Restituisce il numero di hotel (per BATCH, di hotel richiesti).
+    public int size() {
+        return this.hotels.size();
+    }
+
+    // Restituisce il numero di byte della risposta, prima dell'eventuale compressione.
+    public int getLength() {
+        return this.length;
+    }
+
+    public boolean isCompressed() {
+        return this.deflater != null;
+    }
+
+    /**
+     * Scrive la lunghezza della risposta che precede gli hotel (searchHotel, searchHotels e
+     * searchHotelsPage). Per le connessioni che hanno concordato la compressione la lunghezza è
+     * preceduta dai flag della risposta; per le risposte compresse è la lunghezza originale e gli
+     * hotel seguono in blocchi compressi.
+     *
+     * @param buffer il buffer dell'intestazione, con almeno 2 interi liberi.
+     * @param withFlags true se la connessione ha concordato la compressione.
+     */
+    public void putLengthHeader(ByteBuffer buffer, boolean withFlags) {
+        if (withFlags)
+            buffer.putInt(this.isCompressed() ? ServerMain.COMPRESSED_RESPONSE : 0);
+        buffer.putInt(this.length);
+    }
+
+    /**
+     * Scrive il numero di hotel che precede gli esiti di searchHotelBatch. Per le connessioni che
+     * hanno concordato la compressione il numero è preceduto dai flag della risposta e, per le
+     * risposte compresse, seguito dalla lunghezza originale degli esiti, che seguono in blocchi
+     * compressi come per putLengthHeader.
+     *
+     * @param buffer il buffer dell'intestazione, con almeno 3 interi liberi.
+     * @param withFlags true se la connessione ha concordato la compressione.
+     */
+    public void putCountHeader(ByteBuffer buffer, boolean withFlags) {
+        if (withFlags)
+            buffer.putInt(this.isCompressed() ? ServerMain.COMPRESSED_RESPONSE : 0);
+        buffer.putInt(this.size());
+        if (this.isCompressed())
+            buffer.putInt(this.length);
+    }
+
+    /**
+     * Fa produrre allo stream la risposta compressa con il Deflater della connessione, a blocchi
+     * di COMPRESSION_CHUNK_BYTES non compressi. Va chiamato prima di iniziare l'invio.
+     *
+     * @param deflater il Deflater della connessione, riutilizzato tra una risposta e l'altra.
+     */
+    public void compress(Deflater deflater) {
+        deflater.reset();
+        this.deflater = deflater;
+        this.plainChunk = ByteBuffer.allocate(COMPRESSION_CHUNK_BYTES);
+        this.compressedChunk = new byte[Integer.BYTES + COMPRESSION_CHUNK_BYTES + 64]; // Basta anche per i dati incomprimibili.
+    }
+
+    /**
+     * Produce il prossimo blocco compresso: riempie plainChunk con i byte successivi della
+     * risposta e li comprime con SYNC_FLUSH, così che il client possa decomprimerli subito, oppure
+     * termina la compressione se era l'ultimo pezzo.
+     */
+    private void nextCompressedChunk(CharsetEncoder encoder) {
+        this.plainChunk.clear();
+        this.plainDone = this.fillPlain(this.plainChunk, encoder);
+        this.deflater.setInput(this.plainChunk.array(), 0, this.plainChunk.position());
+        if (this.plainDone)
+            this.deflater.finish();
+        int nBytes = Integer.BYTES;
+        while (true) {
+            if (nBytes == this.compressedChunk.length)
+                this.compressedChunk = Arrays.copyOf(this.compressedChunk, 2 * this.compressedChunk.length);
+            nBytes += this.deflater.deflate(this.compressedChunk, nBytes, this.compressedChunk.length - nBytes,
+                    this.plainDone ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+            // Con SYNC_FLUSH l'output è completo quando non riempie lo spazio disponibile.
+            if (this.plainDone ? this.deflater.finished() : nBytes < this.compressedChunk.length)
+                break;
+        }
+        ByteBuffer.wrap(this.compressedChunk).putInt(0, nBytes - Integer.BYTES);
+        this.compressedPending = ByteBuffer.wrap(this.compressedChunk, 0, nBytes);
+    }
+
+    // Numero di byte della codifica UTF-8 di una sequenza di caratteri, calcolato senza codificarla.
+    private static int utf8Length(CharSequence chars) {
+        int nBytes = 0;
+        for (int i = 0; i < chars.length(); i++) {
+            char c = chars.charAt(i);
+            if (c < 0x80)
+                nBytes += 1;
+            else if (c < 0x800)
+                nBytes += 2;
+            else if (Character.isHighSurrogate(c) && i + 1 < chars.length() && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                nBytes += 4;
+                i++;
+            }
+            else
+                nBytes += 3;
+        }
+        return nBytes;
+    }
+
+    // Testo di una recensione nel formato di Hotel.toString.
+    private static String reviewText(Review review) {
+        return "{" + review + "}";
+    }
+
+    // Byte del testo di ogni recensione: i voti hanno una sola cifra (ReviewStore.MAX_VOTE), quindi è lo stesso per tutte.
+    private static final int REVIEW_TEXT_BYTES = utf8Length(reviewText(new Review(0, 0, 0, 0, 0, 0)));
+
+    // Byte della rappresentazione testuale dell'hotel i, come Hotel.toString (preceduta dalla posizione per RANKING).
+    private int textLength(int i) {
+        Hotel hotel = this.hotels.get(i);
+        int nBytes = utf8Length(hotel.toStringHeader(this.averages[i])) + utf8Length(this.textTrailer());
+        if (this.kind == RANKING)
+            nBytes += utf8Length(this.textPrefix(i));
+        return nBytes + this.reviewCounts[i] * REVIEW_TEXT_BYTES;
+    }
+
+    // Byte della codifica binaria dell'hotel i.
+    private int binaryLength(int i) {
+        Hotel hotel = this.hotels.get(i);
+        int nBytes = 4 * Integer.BYTES + utf8Length(hotel.getName()) + utf8Length(hotel.getDescription())
+                + utf8Length(hotel.getCity()) + utf8Length(hotel.getPhone());
+        nBytes += Integer.BYTES;
+        for (String service : hotel.getServices())
+            nBytes += Integer.BYTES + utf8Length(service);
+        nBytes += Double.BYTES + Integer.BYTES;
+        if (this.includeReviews)
+            nBytes += this.reviewCounts[i] * 5 * Integer.BYTES;
+        return nBytes;
+    }
+
+    private String textPrefix(int i) {
+        return (this.firstPosition + i) + ") ";
+    }
+
+    private String textTrailer() {
+        return this.kind == RANKING ? "}\n" : "}";
+    }
+
+    /**
+     * Scrive nel buffer i byte successivi della risposta, finché il buffer ha spazio.
+     *
+     * @param buffer il buffer, in modalità scrittura, da riempire.
+     * @param encoder l'encoder UTF-8 del reactor.
+     * @return true se lo stream è terminato, false se il buffer è pieno.
+     */
+    public boolean fill(ByteBuffer buffer, CharsetEncoder encoder) {
+        if (this.deflater == null)
+            return this.fillPlain(buffer, encoder);
+        while (true) {
+            if (this.compressedPending != null) {
+                int nBytes = Math.min(buffer.remaining(), this.compressedPending.remaining());
+                buffer.put(this.compressedPending.array(), this.compressedPending.position(), nBytes);
+                this.compressedPending.position(this.compressedPending.position() + nBytes);
+                if (this.compressedPending.hasRemaining())
+                    return false;
+                this.compressedPending = null;
+            }
+            if (this.plainDone)
+                return true;
+            this.nextCompressedChunk(encoder);
+        }
+    }
+
+    // Come fill, per i byte non compressi della risposta.
+    private boolean fillPlain(ByteBuffer buffer, CharsetEncoder encoder) {
+        while (true) {
+            if (this.pendingBytes != null) {
+                int nBytes = Math.min(buffer.remaining(), this.pendingBytes.remaining());
+                buffer.put(this.pendingBytes.array(), this.pendingBytes.position(), nBytes);
+                this.pendingBytes.position(this.pendingBytes.position() + nBytes);
+                if (this.pendingBytes.hasRemaining())
+                    return false;
+                this.pendingBytes = null;
+            }
+            if (this.pending != null) {
+                encoder.reset();
+                if (encoder.encode(this.pending, buffer, true).isOverflow())
+                    return false;
+                this.pending = null;
+            }
+            if (this.index == this.hotels.size())
+                return true;
+            if (!this.nextPiece(buffer))
+                return false;
+        }
+    }
+
+    // Passa all'hotel successivo.
+    private void nextHotel() {
+        this.index++;
+        this.step = this.kind == BATCH ? -1 : 0;
+    }
+
+    /**
+     * Produce il prossimo pezzo della risposta: gli interi vengono scritti direttamente nel buffer,
+     * il testo viene lasciato in pending e codificato da fill.
+     *
+     * @param buffer il buffer da riempire.
+     * @return false se il buffer non ha spazio per il prossimo intero.
+     */
+    private boolean nextPiece(ByteBuffer buffer) {
+        if (this.index == -1) { // Numero di hotel della classifica binaria.
+            if (buffer.remaining() < Integer.BYTES)
+                return false;
+            buffer.putInt(this.hotels.size());
+            this.nextHotel();
+            return true;
+        }
+        Hotel hotel = this.hotels.get(this.index);
+        if (this.step == -1) { // Esito e lunghezza dell'hotel di BATCH.
+            if (buffer.remaining() < 2 * Integer.BYTES)
+                return false;
+            if (hotel == null) {
+                buffer.putInt(-1);
+                this.nextHotel();
+                return true;
+            }
+            buffer.putInt(0);
+            buffer.putInt(this.hotelLengths[this.index]);
+            this.step = 0;
+            return true;
+        }
+        if (this.cachedHotels[this.index] != null)
+            return this.nextCachedPiece();
+        return this.binary ? this.nextBinaryPiece(buffer, hotel) : this.nextTextPiece(hotel);
+    }
+
+    // Copia la codifica in cache dell'hotel corrente, preceduta dalla posizione e seguita da "\n" nelle classifiche testuali.
+    private boolean nextCachedPiece() {
+        boolean ranked = this.kind == RANKING && !this.binary;
+        switch (this.step) {
+            case 0:
+                this.step = 1;
+                if (ranked) // Altrimenti fill richiama il metodo, che prosegue dal passo 1.
+                    this.pending = CharBuffer.wrap(this.textPrefix(this.index));
+                return true;
+            case 1:
+                this.pendingBytes = ByteBuffer.wrap(this.cachedHotels[this.index]);
+                if (ranked)
+                    this.step = 2;
+                else
+                    this.nextHotel();
+                return true;
+            case 2:
+                this.pending = CharBuffer.wrap("\n");
+                this.nextHotel();
+                return true;
+            default:
+                throw new IllegalStateException("Invalid step: " + this.step);
+        }
+    }
+
+    private boolean nextTextPiece(Hotel hotel) {
+        switch (this.step) {
+            case 0:
+                this.step = 1;
+                if (this.kind == RANKING) // Altrimenti fill richiama il metodo, che prosegue dal passo 1.
+                    this.pending = CharBuffer.wrap(this.textPrefix(this.index));
+                return true;
+            case 1:
+                this.pending = CharBuffer.wrap(hotel.toStringHeader(this.averages[this.index]));
+                this.reviewIndex = 0;
+                this.step = 2;
+                return true;
+            case 2:
+                if (this.reviewIndex < this.reviewCounts[this.index]) {
+                    this.pending = CharBuffer.wrap(reviewText(hotel.getRatings().get(this.reviewIndex++)));
+                    return true;
+                }
+                this.pending = CharBuffer.wrap(this.textTrailer());
+                this.nextHotel();
+                return true;
+            default:
+                throw new IllegalStateException("Invalid step: " + this.step);
+        }
+    }
+
+    // Scrive la lunghezza di una stringa e la lascia in pending; false se non c'è spazio per la lunghezza.
+    private boolean binaryString(ByteBuffer buffer, String string) {
+        if (buffer.remaining() < Integer.BYTES)
+            return false;
+        buffer.putInt(utf8Length(string));
+        this.pending = CharBuffer.wrap(string);
+        this.step++;
+        return true;
+    }
+
+    private boolean nextBinaryPiece(ByteBuffer buffer, Hotel hotel) {
+        switch (this.step) {
+            case 0: return this.binaryString(buffer, hotel.getName());
+            case 1: return this.binaryString(buffer, hotel.getDescription());
+            case 2: return this.binaryString(buffer, hotel.getCity());
+            case 3: return this.binaryString(buffer, hotel.getPhone());
+            case 4:
+                if (buffer.remaining() < Integer.BYTES)
+                    return false;
+                buffer.putInt(hotel.getServices().size());
+                this.servicesIndex = 0;
+                this.step = 5;
+                return true;
+            case 5:
+                if (this.servicesIndex < hotel.getServices().size()) {
+                    if (buffer.remaining() < Integer.BYTES)
+                        return false;
+                    String service = hotel.getServices().get(this.servicesIndex++);
+                    buffer.putInt(utf8Length(service));
+                    this.pending = CharBuffer.wrap(service);
+                    return true;
+                }
+                this.step = 6;
+                return true;
+            case 6:
+                if (buffer.remaining() < Double.BYTES + Integer.BYTES)
+                    return false;
+                buffer.putDouble(this.averages[this.index]);
+                buffer.putInt(this.reviewCounts[this.index]);
+                if (!this.includeReviews) {
+                    this.nextHotel();
+                    return true;
+                }
+                this.reviewIndex = 0;
+                this.step = 7;
+                return true;
+            case 7:
+                if (this.reviewIndex == this.reviewCounts[this.index]) {
+                    this.nextHotel();
+                    return true;
+                }
+                if (buffer.remaining() < 5 * Integer.BYTES)
+                    return false;
+                Review review = hotel.getRatings().get(this.reviewIndex++);
+                buffer.putInt(review.getVotoComplessivo());
+                buffer.putInt(review.getPositionVote());
+                buffer.putInt(review.getCleanlinessVote());
+                buffer.putInt(review.getServiceVote());
+                buffer.putInt(review.getPriceVote());
+                return true;
+            default:
+                throw new IllegalStateException("Invalid step: " + this.step);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+/**
+ * Questa è la classe che rappresenta il task lato server che, in modalità virtual, chiude
+ * periodicamente le connessioni inattive da IDLE_TIMEOUT_MILLIS. Le connessioni sono mantenute in
+ * una TimingWheel condivisa, quindi ogni esecuzione visita soltanto quelle in scadenza; la chiusura
+ * del canale sblocca la lettura del thread virtuale della connessione, che termina.
+ */
+public class IdleReaperTask implements Runnable {
+    private final TimingWheel<ConnectionTask> idleWheel = new TimingWheel<>(ServerMain.IDLE_WHEEL_SLOTS, ServerMain.IDLE_CHECK_MILLIS,
+            connection -> connection.getLastActivity() + ServerMain.IDLE_TIMEOUT_MILLIS, System.currentTimeMillis());
+
+    // Aggiunge una connessione appena accettata a quelle controllate.
+    public synchronized void add(ConnectionTask connection) {
+        this.idleWheel.add(connection);
+    }
+
+    public synchronized void run() {
+        this.idleWheel.expire(System.currentTimeMillis(), ConnectionTask::reap);
+    }
+}
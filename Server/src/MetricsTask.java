@@ -0,0 +1,17 @@
+/**
+ * Questa è la classe che rappresenta il task lato server che stampa periodicamente
+ * le metriche di carico del server.
+ */
+public class MetricsTask implements Runnable {
+
+    public void run() {
+        System.out.println("Auth queue depth: " + ServerMain.getAuthQueueDepth() + "\n");
+        System.out.println("Active connections: " + ServerMain.getActiveConnections() + ", reaped idle: " + ServerMain.getReapedConnections()
+                + ", refused: " + ServerMain.getRefusedConnections() + "\n");
+        System.out.println("Requests shed while overloaded: " + ServerMain.getShedRequests() + "\n");
+        System.out.println("Requests rate limited per connection: " + ServerMain.getConnectionRateLimited() + ", per user: "
+                + ServerMain.getUserRateLimited() + "\n");
+        System.out.println("Push subscribers: " + ServerMain.getPushSubscribers() + ", dropped notifications: " + ServerMain.getDroppedPushes() + "\n");
+        System.out.println("Off-heap review bytes: " + OffHeapReviewStore.getAllocatedBytes() + "\n");
+    }
+}
@@ -1,8 +1,35 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.Deflater;
+
 public class ObjectAttach {
+    public static final int TEXT_FORMAT = 0; // Hotel e classifiche inviati come stringhe leggibili (default).
+    public static final int BINARY_FORMAT = 1; // Hotel inviati in formato binario compatto, senza recensioni.
+    public static final int BINARY_FORMAT_WITH_REVIEWS = 2; // Hotel inviati in formato binario compatto, con i voti delle recensioni.
+
     private int operation; // Attributo utilizzato per mantenere l'id dell'operazione richiesta.
     private int output; // Attributo utilizzato per mantenere l'output dell'operazione richiesta.
     private String username; // Attributo utilizzato per mantenere l'username.
     private String messagge; // Attributo utilizzato per mantenere i messaggi tra client e server.
+    private String sessionToken = ""; // Token della sessione creata o ripresa dalla connessione, vuoto se non c'è.
+    private int protocolVersion = 0; // Versione del protocollo concordata con l'handshake, 0 (legacy) se il client non l'ha fatto.
+    private int capabilities = 0; // Funzionalità opzionali concordate con l'handshake (bit ServerMain.CAPABILITY_*).
+    private int responseFormat = TEXT_FORMAT; // Formato delle risposte di searchHotel, searchHotels e searchHotelBatch scelto dal client.
+    private Deflater deflater = null; // Deflater delle risposte compresse, creato alla prima compressione e riutilizzato.
+    private HotelsResponseStream stream = null; // Hotel della risposta in corso, prodotti un buffer alla volta durante l'invio.
+    private int rankingEpoch = 0; // Epoca della classifica da cui è stata presa l'ultima pagina di searchHotelsPage.
+    private int rankingSize = 0; // Numero totale di hotel della classifica dell'ultima searchHotelsPage.
+    private final RequestDecoder decoder = new RequestDecoder(); // Decoder che accumula i byte delle richieste della connessione.
+    private final ArrayDeque<ByteBuffer> outputQueue = new ArrayDeque<>(); // Buffer delle risposte non ancora inviate, in ordine di invio.
+    private int outputBytes = 0; // Byte ancora da inviare presenti in outputQueue.
+    private boolean parked = false; // True se una registrazione o un login è in attesa del ThreadPool di autenticazione.
+    private volatile long lastActivity = System.currentTimeMillis(); // Istante dell'ultima lettura o scrittura, usato per chiudere le connessioni inattive.
+    private TokenBucket registrationBucket = null; // Limite di registrazioni della connessione, creato alla prima registrazione.
+    private TokenBucket reviewBucket = null; // Limite di recensioni della connessione, creato alla prima recensione.
+    private volatile ArrayBlockingQueue<byte[]> pushQueue = null; // Notifiche push da inviare, null se la connessione non è iscritta.
+    private Runnable pushWakeup = null; // Avvisa il thread che gestisce la connessione che ci sono notifiche push da inviare.
+    private boolean closing = false; // True se il client ha chiesto la chiusura: la connessione si chiude appena inviate le risposte accodate.
     
     public ObjectAttach() {
         this.operation = -1;
@@ -47,6 +74,129 @@ public class ObjectAttach {
     public String getMessagge() {
         return messagge;
     }
+
+    public int getProtocolVersion() {
+        return this.protocolVersion;
+    }
+
+    public int getCapabilities() {
+        return this.capabilities;
+    }
+
+    // True se la funzionalità opzionale è stata concordata con l'handshake.
+    public boolean hasCapability(int capability) {
+        return (this.capabilities & capability) != 0;
+    }
+
+    // Restituisce il Deflater della connessione, creandolo alla prima risposta compressa.
+    public Deflater getDeflater() {
+        if (this.deflater == null)
+            this.deflater = new Deflater(Deflater.BEST_SPEED);
+        return this.deflater;
+    }
+
+    // Libera la memoria nativa del Deflater alla chiusura della connessione.
+    public void releaseDeflater() {
+        if (this.deflater != null) {
+            this.deflater.end();
+            this.deflater = null;
+        }
+    }
+
+    public int getResponseFormat() {
+        return this.responseFormat;
+    }
+
+    public HotelsResponseStream getStream() {
+        return this.stream;
+    }
+
+    public int getRankingEpoch() {
+        return this.rankingEpoch;
+    }
+
+    public int getRankingSize() {
+        return this.rankingSize;
+    }
+
+    public RequestDecoder getDecoder() {
+        return this.decoder;
+    }
+
+    public ArrayDeque<ByteBuffer> getOutputQueue() {
+        return this.outputQueue;
+    }
+
+    public int getOutputBytes() {
+        return this.outputBytes;
+    }
+
+    public long getLastActivity() {
+        return this.lastActivity;
+    }
+
+    public void setLastActivity(long lastActivity) {
+        this.lastActivity = lastActivity;
+    }
+
+    public TokenBucket getRegistrationBucket() {
+        return this.registrationBucket;
+    }
+
+    public TokenBucket getReviewBucket() {
+        return this.reviewBucket;
+    }
+
+    public Runnable getPushWakeup() {
+        return this.pushWakeup;
+    }
+
+    // Crea la coda limitata delle notifiche push, all'iscrizione della connessione.
+    public void enablePush(int capacity) {
+        this.pushQueue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    // Elimina la coda delle notifiche push e quelle non ancora inviate.
+    public void disablePush() {
+        this.pushQueue = null;
+    }
+
+    // Accoda una notifica push senza bloccarsi; false se la coda è piena o la connessione non è iscritta.
+    public boolean offerPush(byte[] frame) {
+        ArrayBlockingQueue<byte[]> queue = this.pushQueue;
+        return queue != null && queue.offer(frame);
+    }
+
+    // Restituisce la prossima notifica push senza toglierla dalla coda, null se non ce ne sono.
+    public byte[] peekPush() {
+        ArrayBlockingQueue<byte[]> queue = this.pushQueue;
+        return queue == null ? null : queue.peek();
+    }
+
+    // Toglie e restituisce la prossima notifica push, null se non ce ne sono.
+    public byte[] pollPush() {
+        ArrayBlockingQueue<byte[]> queue = this.pushQueue;
+        return queue == null ? null : queue.poll();
+    }
+
+    public boolean isParked() {
+        return this.parked;
+    }
+
+    public boolean isClosing() {
+        return this.closing;
+    }
+
+    // Accoda un buffer, pronto per la lettura, alle risposte da inviare.
+    public void enqueueOutput(ByteBuffer buffer) {
+        this.outputQueue.addLast(buffer);
+        this.outputBytes += buffer.remaining();
+    }
+
+    // Aggiorna il conteggio dei byte da inviare dopo una scrittura sul canale.
+    public void outputWritten(int nBytes) {
+        this.outputBytes -= nBytes;
+    }
     
     public void setOperation(int operation) {
         this.operation = operation;
@@ -60,9 +210,56 @@ public class ObjectAttach {
         this.username = username;
     }
     
+    public String getSessionToken() {
+        return this.sessionToken;
+    }
+
+    public void setSessionToken(String sessionToken) {
+        this.sessionToken = sessionToken;
+    }
+
     public void setMessagge(String messagge) {
         this.messagge = messagge;
     }
+
+    // Memorizza il risultato dell'handshake della connessione.
+    public void setProtocol(int protocolVersion, int capabilities) {
+        this.protocolVersion = protocolVersion;
+        this.capabilities = capabilities;
+    }
+
+    public void setResponseFormat(int responseFormat) {
+        this.responseFormat = responseFormat;
+    }
+
+    public void setStream(HotelsResponseStream stream) {
+        this.stream = stream;
+    }
+
+    public void setRankingPage(int rankingEpoch, int rankingSize) {
+        this.rankingEpoch = rankingEpoch;
+        this.rankingSize = rankingSize;
+    }
+
+    public void setParked(boolean parked) {
+        this.parked = parked;
+    }
+
+    public void setRegistrationBucket(TokenBucket registrationBucket) {
+        this.registrationBucket = registrationBucket;
+    }
+
+    public void setReviewBucket(TokenBucket reviewBucket) {
+        this.reviewBucket = reviewBucket;
+    }
+
+    public void setPushWakeup(Runnable pushWakeup) {
+        this.pushWakeup = pushWakeup;
+    }
+
+    public void setClosing(boolean closing) {
+        this.closing = closing;
+    }
     
     
 }
@@ -0,0 +1,58 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Questa è la classe che tiene le recensioni codificate di un hotel fuori dallo heap, così che un
+ * gran numero di recensioni non pesi sul garbage collector. Le recensioni sono divise in segmenti
+ * di SEGMENT_REVIEWS long, ricavati da slab di memoria diretta di SLAB_BYTES condivisi da tutti gli
+ * hotel: gli hotel senza recensioni non occupano memoria diretta e un hotel ne occupa al massimo un
+ * segmento non pieno. Le recensioni non vengono mai rimosse, quindi i segmenti non vengono liberati.
+ *
+ * La memoria diretta è limitata da -XX:MaxDirectMemorySize, che di default coincide con la
+ * dimensione massima dello heap.
+ */
+public class OffHeapReviewStore extends ReviewStore {
+    private static final int SEGMENT_REVIEWS = 64;
+    private static final int SEGMENT_BYTES = SEGMENT_REVIEWS * Long.BYTES;
+    private static final int SLAB_BYTES = 1 << 20; // 2048 segmenti per slab.
+    private static final ByteBuffer[] EMPTY = new ByteBuffer[0];
+    private static ByteBuffer slab = null; // Slab da cui vengono ricavati i prossimi segmenti.
+    private static long allocatedBytes = 0; // Memoria diretta allocata in slab.
+
+    private volatile ByteBuffer[] segments = EMPTY;
+
+    // Ricava un nuovo segmento dallo slab corrente, allocando un nuovo slab quando è esaurito.
+    private static synchronized ByteBuffer allocateSegment() {
+        if (slab == null || !slab.hasRemaining()) {
+            slab = ByteBuffer.allocateDirect(SLAB_BYTES);
+            allocatedBytes += SLAB_BYTES;
+        }
+        ByteBuffer segment = slab.slice(slab.position(), SEGMENT_BYTES).order(ByteOrder.nativeOrder());
+        slab.position(slab.position() + SEGMENT_BYTES);
+        return segment;
+    }
+
+    // Restituisce i byte di memoria diretta allocati per le recensioni.
+    public static synchronized long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    protected void put(int i, long packed) {
+        int nSegment = i / SEGMENT_REVIEWS;
+        ByteBuffer[] current = this.segments;
+        if (i % SEGMENT_REVIEWS == 0) { // Serve un nuovo segmento.
+            if (nSegment == current.length) {
+                ByteBuffer[] grown = new ByteBuffer[nSegment + 1 + (nSegment >> 1)];
+                System.arraycopy(current, 0, grown, 0, nSegment);
+                current = grown;
+            }
+            current[nSegment] = allocateSegment();
+        }
+        current[nSegment].putLong((i % SEGMENT_REVIEWS) * Long.BYTES, packed);
+        this.segments = current; // Pubblico i segmenti prima del nuovo size.
+    }
+
+    protected long packedAt(int i) {
+        return this.segments[i / SEGMENT_REVIEWS].getLong((i % SEGMENT_REVIEWS) * Long.BYTES);
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * Questa è la classe che rappresenta il task lato server che controlla periodicamente se il server
+ * è sovraccarico. I segnali considerati sono il ritardo dei reactor nel servire gli eventi del
+ * proprio selector, le registrazioni e i login in attesa di un thread di autenticazione e i byte
+ * delle risposte in attesa di invio. Il server entra in sovraccarico quando un segnale supera la
+ * sua soglia e ne esce quando tutti i segnali sono scesi sotto metà della soglia, così che lo stato
+ * non oscilli a ogni controllo. In sovraccarico ServerMain rifiuta le operazioni costose con il
+ * codice BUSY, mentre quelle economiche continuano a essere eseguite.
+ */
+public class OverloadDetector implements Runnable {
+    private final Reactor[] reactors; // I reactor della modalità nio, vuoto nelle altre modalità.
+    private final long maxLoopLagMillis;
+    private final int maxAuthQueueDepth;
+    private final long maxPendingWriteBytes;
+    private volatile boolean overloaded = false;
+
+    public OverloadDetector(Reactor[] reactors, long maxLoopLagMillis, int maxAuthQueueDepth, long maxPendingWriteBytes) {
+        this.reactors = reactors;
+        this.maxLoopLagMillis = maxLoopLagMillis;
+        this.maxAuthQueueDepth = maxAuthQueueDepth;
+        this.maxPendingWriteBytes = maxPendingWriteBytes;
+    }
+
+    public boolean isOverloaded() {
+        return this.overloaded;
+    }
+
+    public void run() {
+        long loopLagMillis = 0;
+        long pendingWriteBytes = 0;
+        for (Reactor reactor : this.reactors) {
+            loopLagMillis = Math.max(loopLagMillis, reactor.takeLoopLagNanos() / 1_000_000);
+            pendingWriteBytes += reactor.getPendingWriteBytes();
+        }
+        int authQueueDepth = ServerMain.getAuthQueueDepth();
+        if (!this.overloaded && (loopLagMillis >= this.maxLoopLagMillis || authQueueDepth >= this.maxAuthQueueDepth
+                || pendingWriteBytes >= this.maxPendingWriteBytes)) {
+            this.overloaded = true;
+            System.out.println("Server overloaded (loop lag " + loopLagMillis + " ms, auth queue " + authQueueDepth
+                    + ", pending write bytes " + pendingWriteBytes + "): shedding expensive requests.\n");
+        }
+        else if (this.overloaded && loopLagMillis < this.maxLoopLagMillis / 2 && authQueueDepth < this.maxAuthQueueDepth / 2
+                && pendingWriteBytes < this.maxPendingWriteBytes / 2) {
+            this.overloaded = false;
+            System.out.println("Server load back to normal.\n");
+        }
+    }
+}
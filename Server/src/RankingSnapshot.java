@@ -0,0 +1,39 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Questa è la classe che rappresenta una copia immutabile della classifica di una città,
+ * pubblicata da RankingStructure al termine di ogni ricalcolo. L'epoca identifica il ricalcolo:
+ * le pagine richieste con la stessa epoca provengono dalla stessa classifica, anche se nel
+ * frattempo ne è stata pubblicata una nuova.
+ */
+public class RankingSnapshot {
+    private final int epoch; // Numero del ricalcolo che ha prodotto la classifica.
+    private final Hotel[] hotels; // Hotel in ordine di classifica.
+
+    public RankingSnapshot(int epoch, Hotel[] hotels) {
+        this.epoch = epoch;
+        this.hotels = hotels;
+    }
+
+    public int getEpoch() {
+        return this.epoch;
+    }
+
+    public int size() {
+        return this.hotels.length;
+    }
+
+    /**
+     * Restituisce gli hotel di una pagina della classifica senza copiarli.
+     *
+     * @param offset la posizione (da 0) del primo hotel della pagina.
+     * @param limit il numero massimo di hotel della pagina.
+     * @return gli hotel dalla posizione offset, al più limit; vuota se offset supera la classifica.
+     */
+    public List<Hotel> getPage(int offset, int limit) {
+        int from = Math.min(offset, this.hotels.length);
+        int to = (int) Math.min((long) from + limit, this.hotels.length);
+        return Arrays.asList(this.hotels).subList(from, to);
+    }
+}
@@ -9,13 +9,16 @@ public class RankingStructure {
       
     private final String city;
     private ConcurrentSkipListSet<Hotel> ranking; // Contiene gli id degli hotel.
+    private volatile RankingSnapshot snapshot; // Ultima classifica pubblicata, usata per la paginazione.
+    private volatile RankingSnapshot previousSnapshot = null; // Classifica precedente, mantenuta per chi la sta ancora scorrendo.
     
     public RankingStructure (String citta) {
         this.city = citta;
         this.ranking = new ConcurrentSkipListSet<Hotel>(new ComparatoreHotel());
-        for(Map.Entry<String, Hotel> entry : ServerMain.getHotelsOfCity(this.city).entrySet()) {
-            ranking.add(entry.getValue());
+        for(Hotel hotel : ServerMain.getHotelsOfCity(this.city)) {
+            ranking.add(hotel);
         }
+        this.snapshot = new RankingSnapshot(1, this.ranking.toArray(new Hotel[0]));
     }
     
     public String getCity(){
@@ -25,6 +28,33 @@ public class RankingStructure {
     public ConcurrentSkipListSet<Hotel> getRanking() {
         return ranking;
     }
+
+    /**
+     * Pubblica una copia immutabile della classifica con una nuova epoca. Va chiamato da
+     * UpdateRankingsTask dopo aver ricostruito la classifica; la copia precedente resta
+     * disponibile fino alla pubblicazione successiva.
+     */
+    public void publishSnapshot() {
+        RankingSnapshot current = this.snapshot;
+        this.previousSnapshot = current;
+        this.snapshot = new RankingSnapshot(current.getEpoch() + 1, this.ranking.toArray(new Hotel[0]));
+    }
+
+    /**
+     * Restituisce la classifica pubblicata con una certa epoca.
+     *
+     * @param epoch l'epoca richiesta, 0 per l'ultima classifica pubblicata.
+     * @return la classifica di quell'epoca, null se non è più disponibile.
+     */
+    public RankingSnapshot getSnapshot(int epoch) {
+        RankingSnapshot current = this.snapshot;
+        if(epoch == 0 || epoch == current.getEpoch())
+            return current;
+        RankingSnapshot previous = this.previousSnapshot;
+        if(previous != null && epoch == previous.getEpoch())
+            return previous;
+        return null;
+    }
     
     @Override
     public String toString(){
@@ -0,0 +1,545 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Questa è la classe che rappresenta un reactor del server: un thread con il proprio Selector che
+ * gestisce lettura, esecuzione e risposta delle richieste delle connessioni che gli sono state
+ * assegnate dall'acceptor in ServerMain.
+ */
+public class Reactor implements Runnable {
+    private final Selector selector;
+    private final AtomicBoolean stop; // Flag condiviso di terminazione del server.
+    private final ConcurrentLinkedQueue<SocketChannel> newConnections = new ConcurrentLinkedQueue<>(); // Connessioni accettate ma non ancora registrate sul selector.
+    private final AtomicInteger nConnections = new AtomicInteger(0); // Numero di connessioni gestite, usato dall'acceptor per scegliere il reactor meno carico.
+    private final ConcurrentLinkedQueue<Runnable> completions = new ConcurrentLinkedQueue<>(); // Operazioni completate da altri thread da riportare sul selector.
+    private final BufferPool bufferPool = new BufferPool(); // Buffer diretti riutilizzati dalle connessioni del reactor.
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder(); // Codifica le risposte direttamente nei buffer del pool.
+    private volatile long pendingWriteBytes = 0; // Byte accodati e non ancora inviati da tutte le connessioni, scritto solo dal reactor.
+    private volatile long busySince = 0; // Inizio, in nanosecondi, dell'elaborazione degli eventi in corso; 0 se il reactor è in select.
+    private final AtomicLong loopLag = new AtomicLong(0); // Durata massima di un'elaborazione degli eventi dall'ultimo controllo.
+    // Connessioni del reactor ordinate per scadenza dell'inattività, null se IDLE_TIMEOUT_MILLIS è 0.
+    private final TimingWheel<SelectionKey> idleWheel = ServerMain.IDLE_TIMEOUT_MILLIS <= 0 ? null
+            : new TimingWheel<>(ServerMain.IDLE_WHEEL_SLOTS, ServerMain.IDLE_CHECK_MILLIS,
+                    key -> ((ObjectAttach) key.attachment()).getLastActivity() + ServerMain.IDLE_TIMEOUT_MILLIS, System.currentTimeMillis());
+
+    public Reactor(AtomicBoolean stop) throws IOException {
+        this.selector = Selector.open();
+        this.stop = stop;
+    }
+
+    public int getConnections() {
+        return this.nConnections.get();
+    }
+
+    /**
+     * Assegna al reactor una connessione appena accettata. La registrazione sul selector avviene
+     * nel thread del reactor, quindi il selector viene svegliato.
+     *
+     * @param client il SocketChannel del client, già in modalità non bloccante.
+     */
+    public void addConnection(SocketChannel client) {
+        this.nConnections.incrementAndGet();
+        this.newConnections.add(client);
+        this.selector.wakeup();
+    }
+
+    public long getPendingWriteBytes() {
+        return this.pendingWriteBytes;
+    }
+
+    /**
+     * Restituisce il ritardo massimo con cui il reactor ha servito gli eventi dall'ultima chiamata:
+     * la durata della più lunga elaborazione degli eventi di una select, o quella in corso se è
+     * più lunga. Un evento pronto attende al più questo tempo prima di essere servito.
+     *
+     * @return il ritardo in nanosecondi.
+     */
+    public long takeLoopLagNanos() {
+        long lag = this.loopLag.getAndSet(0);
+        long since = this.busySince;
+        return since == 0 ? lag : Math.max(lag, System.nanoTime() - since);
+    }
+
+    // Accoda un buffer alle risposte della connessione, contando i suoi byte tra quelli in attesa di invio del reactor.
+    private void enqueueOutput(ObjectAttach objectAttach, ByteBuffer buffer) {
+        this.pendingWriteBytes += buffer.remaining();
+        objectAttach.enqueueOutput(buffer);
+    }
+
+    // Toglie nBytes da quelli in attesa di invio della connessione e del reactor.
+    private void outputWritten(ObjectAttach objectAttach, int nBytes) {
+        this.pendingWriteBytes -= nBytes;
+        objectAttach.outputWritten(nBytes);
+    }
+
+    // Sveglia il selector, ad esempio per fargli controllare il flag di terminazione.
+    public void wakeup() {
+        this.selector.wakeup();
+    }
+
+    // Registra per la lettura le connessioni assegnate dall'acceptor.
+    private void registerNewConnections() {
+        SocketChannel client;
+        while ((client = this.newConnections.poll()) != null) {
+            try {
+                ObjectAttach objectAttach = new ObjectAttach();
+                SelectionKey key = client.register(this.selector, SelectionKey.OP_READ, objectAttach);
+                // Le notifiche push vengono inviate dal thread del reactor, svegliato da chi le accoda.
+                Runnable deliverPushes = () -> this.deliverPushes(key);
+                objectAttach.setPushWakeup(() -> {
+                    this.completions.add(deliverPushes);
+                    this.selector.wakeup();
+                });
+                if (this.idleWheel != null)
+                    this.idleWheel.add(key);
+            } catch (ClosedChannelException e) {
+                this.nConnections.decrementAndGet();
+                ServerMain.connectionClosed();
+            }
+        }
+    }
+
+    // Esegue nel thread del reactor le operazioni completate dagli altri thread.
+    private void runCompletions() {
+        Runnable completion;
+        while ((completion = this.completions.poll()) != null)
+            completion.run();
+    }
+
+    /**
+     * Affida registrazione o login al ThreadPool di autenticazione, così che BCrypt non blocchi il
+     * reactor. Fino al completamento la connessione è parcheggiata e non legge nuove richieste; il
+     * risultato viene poi riportato al reactor tramite la coda dei completamenti e il risveglio del
+     * selector, e soltanto lì, se la connessione è ancora aperta, il login viene applicato
+     * all'attachment.
+     *
+     * @param request la richiesta di registrazione o login.
+     * @param key la SelectionKey associata al canale del client.
+     * @return true se la richiesta è stata affidata al ThreadPool, false se la sua coda è piena.
+     */
+    private boolean submitAuthRequest(Request request, SelectionKey key) {
+        ObjectAttach objectAttach = (ObjectAttach) key.attachment();
+        int operation = request.getOperation();
+        try {
+            ServerMain.getAuthThreadPool().execute(() -> {
+                int output = ServerMain.executeAuthRequest(request, objectAttach);
+                this.completions.add(() -> {
+                    if (!key.isValid()) // Connessione chiusa durante l'autenticazione: il login non viene applicato.
+                        return;
+                    ServerMain.completeAuthRequest(request, objectAttach, output);
+                    SocketChannel client = (SocketChannel) key.channel();
+                    objectAttach.setParked(false);
+                    this.enqueueResponse(objectAttach, operation, output);
+                    try {
+                        // Invio la risposta ed eseguo le richieste arrivate durante l'autenticazione.
+                        this.processRequest(client, key);
+                    }
+                    catch (IOException ex) {
+                        this.closeConnection(client, key);
+                    }
+                });
+                this.selector.wakeup();
+            });
+            objectAttach.setParked(true);
+            this.updateInterestOps(key);
+            return true;
+        }
+        catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Aggiorna gli eventi a cui è interessata la chiave: OP_WRITE finché ci sono risposte da
+     * inviare, OP_READ se la connessione non è parcheggiata e i byte in attesa di invio non
+     * superano WRITE_HIGH_WATER_MARK (un client lento smette di essere letto finché non recupera).
+     *
+     * @param key la SelectionKey associata al canale del client.
+     */
+    private void updateInterestOps(SelectionKey key) {
+        ObjectAttach objectAttach = (ObjectAttach) key.attachment();
+        int ops = 0;
+        if (!objectAttach.getOutputQueue().isEmpty() || objectAttach.getStream() != null)
+            ops |= SelectionKey.OP_WRITE;
+        if (!objectAttach.isParked() && !objectAttach.isClosing() && objectAttach.getOutputBytes() < ServerMain.WRITE_HIGH_WATER_MARK)
+            ops |= SelectionKey.OP_READ;
+        key.interestOps(ops);
+    }
+
+    /**
+     * Codifica la risposta di un'operazione nei buffer del pool e la accoda a quelle da inviare.
+     * La risposta è il risultato dell'operazione seguito, per showBadge, login con token e ripresa
+     * della sessione andate a buon fine, dalla lunghezza e dai byte UTF-8 del badge, del token o
+     * dell'username. Per searchHotel, searchHotels e searchHotelsPage andate
+     * a buon fine il risultato è seguito (dopo epoca e dimensione della classifica per la
+     * searchHotelsPage) dalla lunghezza degli hotel, e per la searchHotelBatch dal numero di hotel:
+     * gli hotel vengono poi prodotti dallo HotelsResponseStream della connessione durante l'invio.
+     * Se la connessione ha concordato la compressione la lunghezza o il numero di hotel è preceduto
+     * dai flag della risposta (vedi HotelsResponseStream.putLengthHeader e putCountHeader).
+     * L'handshake andato a buon fine è seguito dalla versione e dalle funzionalità concordate.
+     *
+     * @param objectAttach l'attachment della connessione del client.
+     * @param operation l'identificativo dell'operazione eseguita.
+     * @param output il risultato dell'operazione.
+     */
+    private void enqueueResponse(ObjectAttach objectAttach, int operation, int output) {
+        ByteBuffer buffer = this.bufferPool.acquire();
+        buffer.putInt(output);
+        if (output == 0 && operation == 11) {
+            buffer.putInt(objectAttach.getRankingEpoch());
+            buffer.putInt(objectAttach.getRankingSize());
+        }
+        if (output == 0 && (operation == 4 || operation == 5 || operation == 11))
+            objectAttach.getStream().putLengthHeader(buffer, objectAttach.hasCapability(ServerMain.CAPABILITY_COMPRESSION));
+        else if (output == 0 && operation == 9)
+            objectAttach.getStream().putCountHeader(buffer, objectAttach.hasCapability(ServerMain.CAPABILITY_COMPRESSION));
+        else if (output == 0 && operation == 14) { // Versione e funzionalità concordate con l'handshake.
+            buffer.putInt(objectAttach.getProtocolVersion());
+            buffer.putInt(objectAttach.getCapabilities());
+        }
+        else if (output == 0 && (operation == 7 || operation == 12 || operation == 13)) { // Badge, token o username della sessione.
+            buffer = this.encodeString(objectAttach, buffer, objectAttach.getMessagge());
+            objectAttach.setMessagge("");
+        }
+        buffer.flip();
+        this.enqueueOutput(objectAttach, buffer);
+    }
+
+    /**
+     * Accoda le notifiche push in attesa della connessione, copiandole nei buffer del pool. Va
+     * chiamato soltanto tra una risposta e l'altra, quando non c'è una risposta in corso.
+     *
+     * @param objectAttach l'attachment della connessione del client.
+     */
+    private void enqueuePushes(ObjectAttach objectAttach) {
+        byte[] frame = objectAttach.pollPush();
+        if (frame == null)
+            return;
+        ByteBuffer buffer = this.bufferPool.acquire();
+        do {
+            for (int offset = 0; offset < frame.length; ) {
+                buffer = this.reserve(objectAttach, buffer, 1);
+                int nBytes = Math.min(buffer.remaining(), frame.length - offset);
+                buffer.put(frame, offset, nBytes);
+                offset += nBytes;
+            }
+        } while ((frame = objectAttach.pollPush()) != null);
+        buffer.flip();
+        this.enqueueOutput(objectAttach, buffer);
+    }
+
+    // Invia le notifiche push di una connessione del reactor; eseguito come completamento dopo il risveglio del selector.
+    private void deliverPushes(SelectionKey key) {
+        if (key.isValid())
+            this.flush((SocketChannel) key.channel(), key);
+    }
+
+    /**
+     * Garantisce che nel buffer corrente ci siano almeno nBytes liberi: altrimenti il buffer viene
+     * accodato alle risposte da inviare e ne viene preso un altro dal pool.
+     *
+     * @param objectAttach l'attachment della connessione del client.
+     * @param buffer il buffer in cui si sta codificando la risposta.
+     * @param nBytes il numero di byte da scrivere.
+     * @return il buffer in cui proseguire la codifica.
+     */
+    private ByteBuffer reserve(ObjectAttach objectAttach, ByteBuffer buffer, int nBytes) {
+        if (buffer.remaining() >= nBytes)
+            return buffer;
+        buffer.flip();
+        this.enqueueOutput(objectAttach, buffer);
+        return this.bufferPool.acquire();
+    }
+
+    /**
+     * Scrive la lunghezza e i byte UTF-8 di una stringa. La stringa è codificata direttamente nei
+     * buffer del pool; se non entra in uno solo prosegue nei successivi e la lunghezza viene
+     * scritta nel primo a codifica terminata.
+     *
+     * @param objectAttach l'attachment della connessione del client.
+     * @param buffer il buffer in cui si sta codificando la risposta.
+     * @param string la stringa da codificare.
+     * @return il buffer in cui proseguire la codifica.
+     */
+    private ByteBuffer encodeString(ObjectAttach objectAttach, ByteBuffer buffer, String string) {
+        // Riservo lo spazio per la lunghezza della stringa, nota solo dopo la codifica.
+        buffer = this.reserve(objectAttach, buffer, Integer.BYTES);
+        ByteBuffer lengthBuffer = buffer;
+        int lengthPosition = buffer.position();
+        buffer.putInt(0);
+        int nBytes = 0;
+        CharBuffer chars = CharBuffer.wrap(string);
+        this.encoder.reset();
+        while (true) {
+            int start = buffer.position();
+            CoderResult result = this.encoder.encode(chars, buffer, true);
+            nBytes += buffer.position() - start;
+            if (!result.isOverflow())
+                break;
+            // Buffer pieno: lo accodo e continuo la codifica in un altro buffer del pool.
+            buffer.flip();
+            this.enqueueOutput(objectAttach, buffer);
+            buffer = this.bufferPool.acquire();
+        }
+        lengthBuffer.putInt(lengthPosition, nBytes);
+        return buffer;
+    }
+
+    /**
+     * Invia al client le risposte accodate senza mai bloccarsi: se il buffer di invio del socket
+     * è pieno il buffer corrente resta in testa alla coda e la chiave resta in OP_WRITE.
+     * I buffer inviati per intero vengono restituiti al pool e, se c'è una risposta in corso, il
+     * successivo viene prodotto dal suo HotelsResponseStream; altrimenti vengono accodate le
+     * notifiche push in attesa. Se il client ha chiesto la chiusura
+     * la connessione viene chiusa appena la coda si svuota.
+     *
+     * @param client il SocketChannel del client.
+     * @param key la SelectionKey associata al canale del client.
+     * @return true se la connessione è ancora aperta, false se è stata chiusa.
+     */
+    private boolean flush(SocketChannel client, SelectionKey key) {
+        ObjectAttach objectAttach = (ObjectAttach) key.attachment();
+        ArrayDeque<ByteBuffer> outputQueue = objectAttach.getOutputQueue();
+        try {
+            while (true) {
+                HotelsResponseStream stream = objectAttach.getStream();
+                if (stream == null) // Nessuna risposta a metà: le notifiche push si inseriscono tra le risposte accodate.
+                    this.enqueuePushes(objectAttach);
+                if (stream != null && outputQueue.size() <= 1) {
+                    // Produco il buffer successivo della risposta in corso, soltanto ora che i precedenti sono stati inviati.
+                    // Se resta un solo buffer (di solito l'intestazione della risposta) lo completo con i primi byte
+                    // dello stream, così che intestazione e corpo partano con un'unica write e il corpo non venga
+                    // trattenuto dall'algoritmo di Nagle in attesa dell'ACK dell'intestazione.
+                    ByteBuffer buffer = outputQueue.peekLast();
+                    if (buffer == null)
+                        buffer = this.bufferPool.acquire();
+                    else if (buffer.limit() < buffer.capacity()) {
+                        outputQueue.pollLast();
+                        this.outputWritten(objectAttach, buffer.remaining());
+                        buffer.compact();
+                    }
+                    else
+                        buffer = null; // Il buffer rimasto è pieno: lo stream proseguirà dopo il suo invio.
+                    if (buffer != null) {
+                        if (stream.fill(buffer, this.encoder))
+                            objectAttach.setStream(null);
+                        buffer.flip();
+                        this.enqueueOutput(objectAttach, buffer);
+                    }
+                }
+                if (outputQueue.isEmpty())
+                    break;
+                ByteBuffer head = outputQueue.peekFirst();
+                this.outputWritten(objectAttach, client.write(head));
+                if (head.hasRemaining())
+                    break; // Il buffer di invio del socket è pieno.
+                this.bufferPool.release(outputQueue.pollFirst());
+            }
+        }
+        catch (IOException ex) {
+            this.closeConnection(client, key);
+            return false;
+        }
+        if (outputQueue.isEmpty() && objectAttach.isClosing()) {
+            this.closeConnection(client, key);
+            return false;
+        }
+        this.updateInterestOps(key);
+        return true;
+    }
+
+    /**
+     * Decodifica ed esegue, nell'ordine di arrivo, tutte le richieste complete ricevute dal client
+     * senza attendere che le risposte precedenti siano state inviate (pipelining): le risposte
+     * vengono accodate nello stesso ordine e inviate insieme. L'esecuzione si ferma quando i byte
+     * in attesa di invio raggiungono WRITE_HIGH_WATER_MARK e riprende quando il client li ha letti;
+     * si ferma anche durante un'autenticazione e finché la risposta in corso non è stata prodotta
+     * per intero, così che l'ordine delle risposte sia mantenuto.
+     * Se una richiesta non è ancora arrivata per intero i byte già ricevuti restano nel decoder
+     * della connessione.
+     *
+     * @param client il SocketChannel del client.
+     * @param key la SelectionKey associata al canale del client.
+     * @throws IOException se i byte ricevuti non rispettano il protocollo.
+     */
+    private void processRequest(SocketChannel client, SelectionKey key) throws IOException {
+        ObjectAttach objectAttach = (ObjectAttach) key.attachment();
+        while (true) {
+            boolean incomplete = false; // True se il decoder non contiene altre richieste complete.
+            while (!objectAttach.isParked() && !objectAttach.isClosing() && objectAttach.getStream() == null
+                    && objectAttach.getOutputBytes() < ServerMain.WRITE_HIGH_WATER_MARK) {
+                int operation = objectAttach.getDecoder().peekOperation();
+                if(operation == -1) { // Richiesta non ancora completa.
+                    objectAttach.getDecoder().releaseIfEmpty(this.bufferPool);
+                    incomplete = true;
+                    break;
+                }
+                if(ServerMain.isRateLimited(operation, objectAttach)) { // Oltre il limite di frequenza: la richiesta viene scartata senza decodificarla.
+                    objectAttach.getDecoder().skipRequest();
+                    this.enqueueResponse(objectAttach, operation, ServerMain.RATE_LIMITED);
+                    continue;
+                }
+                Request request = objectAttach.getDecoder().nextRequest();
+                if(request.getOperation() == 8) { // closeConnection, dopo aver inviato le risposte già accodate.
+                    objectAttach.setClosing(true);
+                    break;
+                }
+                int output;
+                if(ServerMain.isShed(request)) // Server sovraccarico: operazione costosa rifiutata subito.
+                    output = ServerMain.BUSY;
+                else if(ServerMain.isAuthOperation(request.getOperation())) { // Registrazione e login usano BCrypt.
+                    if(this.submitAuthRequest(request, key))
+                        break; // Le richieste successive attendono il completamento dell'autenticazione.
+                    output = ServerMain.overloadedOutput(request.getOperation()); // Server sovraccarico.
+                }
+                else
+                    output = ServerMain.executeRequest(request, objectAttach);
+                this.enqueueResponse(objectAttach, request.getOperation(), output);
+            }
+            // Invio in un'unica volta le risposte accodate.
+            if(!this.flush(client, key))
+                return; // Connessione chiusa.
+            if(incomplete || objectAttach.isParked() || objectAttach.isClosing() || objectAttach.getStream() != null
+                    || objectAttach.getOutputBytes() >= ServerMain.WRITE_HIGH_WATER_MARK)
+                return; // Le richieste rimanenti verranno eseguite al prossimo OP_READ, OP_WRITE o completamento.
+        }
+    }
+
+    /**
+     * Questo metodo si preoccupa di chiudere la connessione con un client.
+     * Si occupa di eliminare la selection key associata al client e di chiudere
+     * il SocketChannel.
+     * @param client il SocketChannel del client.
+     * @param key la SelectionKey associata al canale del client.
+     */
+    private void closeConnection(SocketChannel client, SelectionKey key) {
+        try {
+            client.close();
+        } catch (IOException closeEx) {
+            System.err.println("Error closing client channel: " + closeEx.getMessage());
+        }
+        key.cancel();
+        ObjectAttach objectAttach = (ObjectAttach) key.attachment();
+        objectAttach.getDecoder().release(this.bufferPool);
+        // Le risposte non ancora inviate vengono scartate.
+        this.pendingWriteBytes -= objectAttach.getOutputBytes();
+        ByteBuffer buffer;
+        while ((buffer = objectAttach.getOutputQueue().pollFirst()) != null)
+            this.bufferPool.release(buffer);
+        objectAttach.setStream(null);
+        objectAttach.releaseDeflater();
+        ServerMain.unsubscribePush(objectAttach);
+        this.nConnections.decrementAndGet();
+        ServerMain.connectionClosed();
+    }
+
+    /**
+     * Chiude una connessione che la TimingWheel ha trovato inattiva da IDLE_TIMEOUT_MILLIS: nessun
+     * byte ricevuto e nessun byte inviato. Le chiavi di connessioni già chiuse vengono ignorate.
+     *
+     * @param key la SelectionKey associata al canale del client.
+     */
+    private void reapIdleConnection(SelectionKey key) {
+        if (!key.isValid())
+            return;
+        ServerMain.connectionReaped();
+        this.closeConnection((SocketChannel) key.channel(), key);
+    }
+
+    public void run() {
+        try {
+            while (!this.stop.get()) {
+                try {
+                    // Con il controllo dell'inattività attivo il selector si sveglia almeno una volta per tick.
+                    if (this.idleWheel != null)
+                        this.selector.select(ServerMain.IDLE_CHECK_MILLIS);
+                    else
+                        this.selector.select();
+                }
+                catch (IOException e) {
+                    System.out.println("IO error occurred: " + e.toString() + "\n");
+                    break;
+                }
+                long start = System.nanoTime();
+                this.busySince = start;
+                this.registerNewConnections();
+                this.runCompletions();
+                long now = System.currentTimeMillis();
+                if (this.idleWheel != null)
+                    this.idleWheel.expire(now, this::reapIdleConnection);
+
+                Set <SelectionKey> readyKeys = this.selector.selectedKeys();
+                Iterator <SelectionKey> iterator = readyKeys.iterator();
+
+                while (iterator.hasNext() && !this.stop.get()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove(); // rimuove la chiave dal Selected Set, ma non dal Registered Set
+                    SocketChannel client = (SocketChannel) key.channel();
+                    ((ObjectAttach) key.attachment()).setLastActivity(now); // Il client sta inviando o ricevendo byte.
+                    try {
+                        if(key.isReadable()){
+                            ObjectAttach objectAttach = (ObjectAttach) key.attachment();
+                            // Accodo i byte disponibili a quelli già ricevuti dal decoder della connessione.
+                            if(objectAttach.getDecoder().readFrom(client, this.bufferPool) == -1) { // Il client ha chiuso il canale.
+                                this.closeConnection(client, key);
+                                continue;
+                            }
+                            // Eseguo tutte le richieste già arrivate per intero.
+                            this.processRequest(client, key);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            // Invio le risposte accodate e riprendo le richieste fermate dal limite di WRITE_HIGH_WATER_MARK.
+                            this.processRequest(client, key);
+                        }
+                    } catch (IOException ex) {
+                        this.closeConnection(client, key);
+                    }
+                }
+                this.busySince = 0;
+                this.loopLag.accumulateAndGet(System.nanoTime() - start, Math::max);
+            }
+        }
+        catch (Exception e) {
+            System.out.println("Unexepcted error occurred: " + e +" "+ e.getMessage() + "\n");
+        }
+        finally {
+            // Chiudo le connessioni non ancora registrate e tutte quelle attive.
+            this.registerNewConnections();
+            for(SelectionKey key : this.selector.keys()){
+                if (key.isValid() && key.channel() instanceof SocketChannel) {
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    if(channel.isOpen() && channel.isConnected()) {
+                        try{
+                            channel.close();
+                        }
+                        catch(IOException e) {
+                            System.out.println("Error closing socket channel: " + e);
+                        }
+                    }
+                }
+            }
+            // Chiudo il selector
+            try {
+                this.selector.close();
+            } catch (IOException e) {
+                System.out.println("Error closing selector: " + e);
+            }
+        }
+    }
+}
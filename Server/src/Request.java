@@ -0,0 +1,36 @@
+/**
+ * Questa è la classe che rappresenta una richiesta del client già completamente ricevuta
+ * e decodificata dal RequestDecoder.
+ */
+public class Request {
+    private final int operation; // Codice dell'operazione richiesta.
+    private final String[] strings; // Stringhe inviate dal client, nell'ordine di invio.
+    private final int[] integers; // Interi inviati dal client dopo le stringhe (es. i voti della recensione).
+
+    public Request(int operation, String[] strings, int[] integers) {
+        this.operation = operation;
+        this.strings = strings;
+        this.integers = integers;
+    }
+
+    public int getOperation() {
+        return this.operation;
+    }
+
+    public String getString(int index) {
+        return this.strings[index];
+    }
+
+    public int getStringCount() {
+        return this.strings.length;
+    }
+
+    public int getInteger(int index) {
+        return this.integers[index];
+    }
+
+    public int[] getIntegers() {
+        return this.integers;
+    }
+
+}
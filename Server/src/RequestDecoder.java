@@ -0,0 +1,236 @@
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Questa è la classe che decodifica in modo incrementale le richieste di una singola connessione.
+ * I byte letti dal SocketChannel vengono accumulati in un buffer attraverso più eventi OP_READ e
+ * una richiesta viene restituita soltanto quando tutti i suoi campi (codice operazione, coppie
+ * lunghezza-stringa e interi finali) sono stati ricevuti. Il buffer è preso in prestito dal
+ * BufferPool del reactor e gli viene restituito quando non contiene più byte in sospeso.
+ */
+public class RequestDecoder {
+    private static final int MAX_REQUEST_BYTES = 1024 * 1024; // Dimensione massima di una singola richiesta.
+    public static final int MAX_BATCH_ITEMS = 100; // Numero massimo di hotel in una searchHotelBatch.
+
+    private ByteBuffer buffer = null; // Buffer di ricezione, in modalità scrittura tra una chiamata e l'altra; null se vuoto.
+    private final byte[] stringBytes = new byte[256]; // Array riutilizzato per la decodifica delle stringhe.
+
+    /**
+     * Restituisce il numero di stringhe previste dall'operazione. La searchHotelBatch (9) ha un
+     * numero variabile di stringhe: il codice dell'operazione è seguito dal numero di hotel
+     * richiesti e poi da una coppia (nome, città) per ciascuno di essi.
+     *
+     * @param operation il codice dell'operazione.
+     * @param count il numero di hotel della searchHotelBatch, ignorato per le altre operazioni.
+     * @return il numero di coppie lunghezza-stringa che seguono il codice dell'operazione.
+     * @throws ProtocolException se il codice dell'operazione non esiste o il numero di hotel non è valido.
+     */
+    private static int stringsOf(int operation, int count) throws ProtocolException {
+        switch (operation) {
+            case 1: case 2: case 4: case 6: case 12: return 2;
+            case 3: case 5: case 7: case 11: case 13: return 1;
+            case 8: case 10: case 14: return 0;
+            case 9:
+                if(count < 0 || count > MAX_BATCH_ITEMS)
+                    throw new ProtocolException("Invalid batch size: " + count);
+                return 2 * count;
+            default: throw new ProtocolException("Unknown operation: " + operation);
+        }
+    }
+
+    // Restituisce il numero di byte del campo conteggio che segue il codice dell'operazione (solo per la searchHotelBatch).
+    private static int countBytesOf(int operation) {
+        return operation == 9 ? Integer.BYTES : 0;
+    }
+
+    /**
+     * Restituisce il numero di interi che seguono le stringhe dell'operazione.
+     *
+     * @param operation il codice dell'operazione.
+     * @return il numero di interi finali (5 voti per la insertReview, il formato per la setResponseFormat,
+     *         epoca, offset e limite per la searchHotelsPage, versione e funzionalità per l'handshake, 0 altrimenti).
+     */
+    private static int integersOf(int operation) {
+        switch (operation) {
+            case 6: return 5;
+            case 10: return 1;
+            case 11: return 3;
+            case 14: return 2;
+            default: return 0;
+        }
+    }
+
+    /**
+     * Legge dal SocketChannel tutti i byte disponibili senza bloccarsi e li accoda a quelli
+     * già ricevuti.
+     *
+     * @param client il SocketChannel del client da cui leggere.
+     * @param pool il BufferPool del reactor che gestisce la connessione.
+     * @return il numero di byte letti, -1 se il client ha chiuso il canale.
+     * @throws IOException se la lettura fallisce o la richiesta supera la dimensione massima.
+     */
+    public int readFrom(SocketChannel client, BufferPool pool) throws IOException {
+        return client.read(this.readBuffer(pool));
+    }
+
+    /**
+     * Restituisce il buffer, in modalità scrittura, in cui ricevere i prossimi byte; è usato
+     * direttamente dalle letture asincrone della modalità async. Se il buffer è pieno viene
+     * sostituito da uno grande il doppio, fino a MAX_REQUEST_BYTES.
+     *
+     * @param pool il BufferPool da cui prendere il buffer.
+     * @return il buffer in cui accodare i byte ricevuti.
+     * @throws ProtocolException se la richiesta supera la dimensione massima.
+     */
+    public ByteBuffer readBuffer(BufferPool pool) throws ProtocolException {
+        if(this.buffer == null)
+            this.buffer = pool.acquire();
+        else if(!this.buffer.hasRemaining()) {
+            if(this.buffer.capacity() >= MAX_REQUEST_BYTES)
+                throw new ProtocolException("Request too large");
+            ByteBuffer bigger = ByteBuffer.allocate(Math.min(this.buffer.capacity() * 2, MAX_REQUEST_BYTES));
+            this.buffer.flip();
+            bigger.put(this.buffer);
+            pool.release(this.buffer);
+            this.buffer = bigger;
+        }
+        return this.buffer;
+    }
+
+    // Restituisce il buffer al pool se non contiene byte di richieste non ancora decodificate.
+    public void releaseIfEmpty(BufferPool pool) {
+        if(this.buffer != null && this.buffer.position() == 0) {
+            pool.release(this.buffer);
+            this.buffer = null;
+        }
+    }
+
+    // Restituisce il buffer al pool, scartando gli eventuali byte in sospeso (chiusura della connessione).
+    public void release(BufferPool pool) {
+        if(this.buffer != null) {
+            pool.release(this.buffer);
+            this.buffer = null;
+        }
+    }
+
+    /**
+     * Calcola la posizione di fine della richiesta che inizia alla posizione corrente del buffer,
+     * senza consumare byte. Vengono letti soltanto i prefissi di lunghezza, quindi il costo non
+     * dipende dalla dimensione delle stringhe.
+     *
+     * @return la posizione del primo byte successivo alla richiesta, -1 se la richiesta è incompleta.
+     * @throws ProtocolException se l'operazione non esiste o una lunghezza non è valida.
+     */
+    private int requestEnd() throws ProtocolException {
+        int limit = this.buffer.limit();
+        int pos = this.buffer.position();
+        if(limit - pos < Integer.BYTES)
+            return -1;
+        int operation = this.buffer.getInt(pos);
+        pos += Integer.BYTES;
+        int count = 0;
+        if(RequestDecoder.countBytesOf(operation) != 0) {
+            if(limit - pos < Integer.BYTES)
+                return -1;
+            count = this.buffer.getInt(pos);
+            pos += Integer.BYTES;
+        }
+        int nStrings = RequestDecoder.stringsOf(operation, count);
+        for(int i = 0; i < nStrings; i++) {
+            if(limit - pos < Integer.BYTES)
+                return -1;
+            int length = this.buffer.getInt(pos);
+            if(length < 0 || length > MAX_REQUEST_BYTES)
+                throw new ProtocolException("Invalid string length: " + length);
+            pos += Integer.BYTES;
+            if(limit - pos < length)
+                return -1;
+            pos += length;
+        }
+        int integersBytes = RequestDecoder.integersOf(operation) * Integer.BYTES;
+        if(limit - pos < integersBytes)
+            return -1;
+        return pos + integersBytes;
+    }
+
+    /**
+     * Restituisce il codice dell'operazione della prossima richiesta senza decodificarla né
+     * consumarne i byte, così che la richiesta possa essere scartata prima di allocarne le stringhe
+     * (limiti di frequenza).
+     *
+     * @return il codice dell'operazione, -1 se la richiesta non è ancora stata ricevuta per intero.
+     * @throws ProtocolException se i byte ricevuti non rispettano il protocollo.
+     */
+    public int peekOperation() throws ProtocolException {
+        if(this.buffer == null)
+            return -1;
+        int position = this.buffer.position();
+        this.buffer.flip();
+        try {
+            return this.requestEnd() == -1 ? -1 : this.buffer.getInt(0);
+        }
+        finally {
+            // Riporto il buffer in modalità scrittura senza spostare byte.
+            this.buffer.limit(this.buffer.capacity());
+            this.buffer.position(position);
+        }
+    }
+
+    /**
+     * Scarta la prossima richiesta completa presente nel buffer senza decodificarla.
+     *
+     * @throws ProtocolException se i byte ricevuti non rispettano il protocollo.
+     */
+    public void skipRequest() throws ProtocolException {
+        if(this.buffer == null)
+            return;
+        this.buffer.flip();
+        try {
+            int end = this.requestEnd();
+            if(end != -1)
+                this.buffer.position(end);
+        }
+        finally {
+            this.buffer.compact();
+        }
+    }
+
+    /**
+     * Restituisce la prossima richiesta completa presente nel buffer e la rimuove da esso.
+     *
+     * @return la richiesta decodificata, null se non è ancora stata ricevuta per intero.
+     * @throws ProtocolException se i byte ricevuti non rispettano il protocollo.
+     */
+    public Request nextRequest() throws ProtocolException {
+        if(this.buffer == null)
+            return null;
+        this.buffer.flip();
+        try {
+            if(this.requestEnd() == -1)
+                return null;
+            // La richiesta è completa: la decodifico consumando i byte.
+            int operation = this.buffer.getInt();
+            int count = RequestDecoder.countBytesOf(operation) != 0 ? this.buffer.getInt() : 0;
+            String[] strings = new String[RequestDecoder.stringsOf(operation, count)];
+            for(int i = 0; i < strings.length; i++) {
+                int length = this.buffer.getInt();
+                // Le stringhe più lunghe dell'array riutilizzato (rare) usano un array dedicato.
+                byte[] target = length <= this.stringBytes.length ? this.stringBytes : new byte[length];
+                this.buffer.get(target, 0, length);
+                strings[i] = new String(target, 0, length, StandardCharsets.UTF_8);
+            }
+            int[] integers = new int[RequestDecoder.integersOf(operation)];
+            for(int i = 0; i < integers.length; i++)
+                integers[i] = this.buffer.getInt();
+            return new Request(operation, strings, integers);
+        }
+        finally {
+            // Sposto gli eventuali byte non consumati all'inizio del buffer.
+            this.buffer.compact();
+        }
+    }
+
+}
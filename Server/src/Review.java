@@ -4,7 +4,8 @@ import java.time.Instant;
  * Questa è la classe che rappresenta la singola recensione.
  */
 public class Review {
-    private static int id = 0;
+    public static final long SECONDS_PER_DAY = 24 * 60 * 60;
+    public static final double DECAY_DAYS = 300; // Costante di decadimento del peso delle recensioni, in giorni.
     private final int overallVote;
     private final int positionVote;
     private final int cleanlinessVote;
@@ -13,17 +14,16 @@ public class Review {
     private final long timestamp; // Secondi passati dal 1 gennaio 1970.
     
     public Review(int votoComlessivo, int posizione, int pulizia, int servizio, int prezzo) {
-        Review.id ++;
+        this(votoComlessivo, posizione, pulizia, servizio, prezzo, Instant.now().getEpochSecond());
+    }
+
+    public Review(int votoComlessivo, int posizione, int pulizia, int servizio, int prezzo, long timestamp) {
         this.overallVote = votoComlessivo;
         this.positionVote = posizione;
         this.cleanlinessVote = pulizia;
         this.serviceVote = servizio;
         this.priceVote = prezzo;
-        this.timestamp = Instant.now().getEpochSecond();
-    }
-
-    public int getId() {
-        return this.id;
+        this.timestamp = timestamp;
     }
     
     public int getVotoComplessivo() {
@@ -51,19 +51,26 @@ public class Review {
     }
 
 
-    /**
-     * Metodo che calcola il peso della recensione basandosi sulla sua attualità.
-     * In particolare il peso viene determinato da una funzione esponenziale decrescente,
-     * dove il tempo trascorso dal momento della pubblicazione delle recensione influisce
-     * negativamente sul suo peso.
-     * @return double Il peso della recensione compreso tra 0 e 1.
-     */
-    public double getWeightReview() {
-        long currentTimestamp = Instant.now().getEpochSecond();
-        long differenceInDays = (currentTimestamp - this.getTimestamp()) / (24 * 60 * 60);
-        return Math.exp(-((double) 1 /300)*differenceInDays); // y=e^((-1/300)*x)
+    // Restituisce il giorno di pubblicazione della recensione, contato dal 1 gennaio 1970.
+    public long getDay() {
+        return Math.floorDiv(this.timestamp, SECONDS_PER_DAY);
     }
-    
+
+    // Restituisce la media dei cinque voti della recensione.
+    public double getAverageVote() {
+        return (this.positionVote + this.priceVote + this.cleanlinessVote + this.serviceVote + this.overallVote) / 5.0;
+    }
+
+    // Restituisce il giorno attuale, contato dal 1 gennaio 1970 come getDay.
+    public static long currentDay() {
+        return Math.floorDiv(Instant.now().getEpochSecond(), SECONDS_PER_DAY);
+    }
+
+    // Restituisce il fattore di decadimento del peso dopo un certo numero di giorni: y=e^((-1/300)*x).
+    public static double decay(long days) {
+        return Math.exp(-days / DECAY_DAYS);
+    }
+
     public String toString() {
         return "Global score: " + this.overallVote + ", Position score: " + this.positionVote + ", Cleaning score: "
                 + this.cleanlinessVote + ", Service score: " + this.serviceVote + ", Price score: " + this.priceVote;
@@ -0,0 +1,142 @@
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+
+/**
+ * Questa è la classe che contiene le recensioni di un hotel in forma compatta: ogni recensione
+ * occupa un solo long, con i cinque voti da 4 bit ciascuno nei bit bassi e il timestamp in quelli
+ * alti, invece di un oggetto Review, una chiave String e un nodo di mappa. Dove vengono tenuti i
+ * long dipende dall'implementazione, scelta con Review_Storage: HeapReviewStore li tiene in un
+ * array nello heap, OffHeapReviewStore in segmenti di memoria diretta fuori dallo heap.
+ *
+ * Le recensioni vengono soltanto aggiunte, mai rimosse. Le aggiunte sono eseguite da un solo thread
+ * alla volta (Hotel.addReview è sincronizzato), mentre le letture non prendono lock: le
+ * implementazioni scrivono la recensione prima di aggiornare size, quindi chi legge size e poi le
+ * recensioni con indice minore di size le trova sempre scritte.
+ *
+ * Nel JSON le recensioni mantengono la forma della vecchia mappa: un oggetto che associa a ogni
+ * chiave (la posizione della recensione, da 1) i campi di Review.
+ */
+public abstract class ReviewStore {
+    private static final boolean OFF_HEAP = "offheap".equals(ServerFileConfigurationReader.get_Review_Storage()); // "heap" oppure "offheap".
+    private static final int VOTE_BITS = 4;
+    private static final int VOTE_MASK = (1 << VOTE_BITS) - 1;
+    private static final int TIMESTAMP_SHIFT = 5 * VOTE_BITS;
+    // Voto massimo: con una sola cifra il testo di ogni recensione ha la stessa lunghezza (vedi HotelsResponseStream).
+    public static final int MAX_VOTE = 9;
+
+    private volatile int size = 0;
+
+    // Crea un contenitore vuoto, nello heap o fuori a seconda di Review_Storage.
+    public static ReviewStore create() {
+        return OFF_HEAP ? new OffHeapReviewStore() : new HeapReviewStore();
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Aggiunge una recensione. Non va chiamato da più thread contemporaneamente.
+     *
+     * @param review la recensione da aggiungere; i voti devono essere compresi tra 0 e MAX_VOTE.
+     */
+    public void add(Review review) {
+        int[] votes = {review.getVotoComplessivo(), review.getPositionVote(), review.getCleanlinessVote(), review.getServiceVote(), review.getPriceVote()};
+        long packed = review.getTimestamp() << TIMESTAMP_SHIFT;
+        for (int i = 0; i < votes.length; i++) {
+            if (votes[i] < 0 || votes[i] > MAX_VOTE)
+                throw new IllegalArgumentException("Invalid vote: " + votes[i]);
+            packed |= (long) votes[i] << (i * VOTE_BITS);
+        }
+        int n = this.size;
+        this.put(n, packed);
+        this.size = n + 1; // Pubblico la recensione soltanto dopo averla scritta.
+    }
+
+    /**
+     * Restituisce la recensione in una certa posizione, come nuovo oggetto Review.
+     *
+     * @param i la posizione della recensione, minore di un size letto in precedenza.
+     * @return la recensione.
+     */
+    public Review get(int i) {
+        long packed = this.packedAt(i);
+        return new Review(vote(packed, 0), vote(packed, 1), vote(packed, 2), vote(packed, 3), vote(packed, 4), packed >> TIMESTAMP_SHIFT);
+    }
+
+    private static int vote(long packed, int i) {
+        return (int) (packed >>> (i * VOTE_BITS)) & VOTE_MASK;
+    }
+
+    // Scrive la recensione codificata in posizione i, uguale al numero di recensioni già presenti.
+    protected abstract void put(int i, long packed);
+
+    // Restituisce la recensione codificata in posizione i.
+    protected abstract long packedAt(int i);
+
+    /**
+     * TypeAdapter usato da Gson per il campo ratings di Hotel: scrive e legge le recensioni una alla
+     * volta, nella stessa forma della vecchia ConcurrentHashMap<String, Review>.
+     */
+    public static class JsonAdapter extends TypeAdapter<ReviewStore> {
+        public void write(JsonWriter out, ReviewStore store) throws IOException {
+            if (store == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            int n = store.size();
+            for (int i = 0; i < n; i++) {
+                Review review = store.get(i);
+                out.name(Integer.toString(i + 1)).beginObject();
+                out.name("overallVote").value(review.getVotoComplessivo());
+                out.name("positionVote").value(review.getPositionVote());
+                out.name("cleanlinessVote").value(review.getCleanlinessVote());
+                out.name("serviceVote").value(review.getServiceVote());
+                out.name("priceVote").value(review.getPriceVote());
+                out.name("timestamp").value(review.getTimestamp());
+                out.endObject();
+            }
+            out.endObject();
+        }
+
+        public ReviewStore read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            ReviewStore store = ReviewStore.create();
+            in.beginObject();
+            while (in.hasNext()) {
+                in.nextName(); // La chiave non serve: conta soltanto l'ordine.
+                int overall = 0, position = 0, cleanliness = 0, service = 0, price = 0;
+                long timestamp = 0;
+                in.beginObject();
+                while (in.hasNext()) {
+                    switch (in.nextName()) {
+                        case "overallVote": overall = in.nextInt(); break;
+                        case "positionVote": position = in.nextInt(); break;
+                        case "cleanlinessVote": cleanliness = in.nextInt(); break;
+                        case "serviceVote": service = in.nextInt(); break;
+                        case "priceVote": price = in.nextInt(); break;
+                        case "timestamp": timestamp = in.nextLong(); break;
+                        default: in.skipValue();
+                    }
+                }
+                in.endObject();
+                try {
+                    store.add(new Review(overall, position, cleanliness, service, price, timestamp));
+                }
+                catch (IllegalArgumentException e) {
+                    throw new JsonParseException(e.getMessage());
+                }
+            }
+            in.endObject();
+            return store;
+        }
+    }
+}
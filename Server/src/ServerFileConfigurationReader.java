@@ -29,6 +29,114 @@ public class ServerFileConfigurationReader extends FileConfigurationReader {
         return serverConfigMap.get("Waiting_Seconds_File_Update");
     }
 
+    public static String get_Server_Mode() {
+        return serverConfigMap.get("Server_Mode");
+    }
+
+    public static String get_Async_Group_Threads() {
+        return serverConfigMap.get("Async_Group_Threads");
+    }
+
+    public static String get_Number_Of_Reactors() {
+        return serverConfigMap.get("Number_Of_Reactors");
+    }
+
+    public static String get_BCrypt_Log_Rounds() {
+        return serverConfigMap.get("BCrypt_Log_Rounds");
+    }
+
+    public static String get_Auth_Threads() {
+        return serverConfigMap.get("Auth_Threads");
+    }
+
+    public static String get_Auth_Queue_Capacity() {
+        return serverConfigMap.get("Auth_Queue_Capacity");
+    }
+
+    public static String get_Write_High_Water_Mark() {
+        return serverConfigMap.get("Write_High_Water_Mark");
+    }
+
+    public static String get_Response_Cache_Max_Hotel_Bytes() {
+        return serverConfigMap.get("Response_Cache_Max_Hotel_Bytes");
+    }
+
+    public static String get_Max_Connections() {
+        return serverConfigMap.get("Max_Connections");
+    }
+
+    public static String get_Idle_Timeout_Seconds() {
+        return serverConfigMap.get("Idle_Timeout_Seconds");
+    }
+
+    public static String get_Overload_Check_Millis() {
+        return serverConfigMap.get("Overload_Check_Millis");
+    }
+
+    public static String get_Overload_Loop_Lag_Millis() {
+        return serverConfigMap.get("Overload_Loop_Lag_Millis");
+    }
+
+    public static String get_Overload_Auth_Queue_Depth() {
+        return serverConfigMap.get("Overload_Auth_Queue_Depth");
+    }
+
+    public static String get_Overload_Pending_Write_Bytes() {
+        return serverConfigMap.get("Overload_Pending_Write_Bytes");
+    }
+
+    public static String get_Overload_Large_City_Hotels() {
+        return serverConfigMap.get("Overload_Large_City_Hotels");
+    }
+
+    public static String get_Rate_Limit_Registrations_Per_Second() {
+        return serverConfigMap.get("Rate_Limit_Registrations_Per_Second");
+    }
+
+    public static String get_Rate_Limit_Registrations_Burst() {
+        return serverConfigMap.get("Rate_Limit_Registrations_Burst");
+    }
+
+    public static String get_Rate_Limit_Reviews_Per_Second() {
+        return serverConfigMap.get("Rate_Limit_Reviews_Per_Second");
+    }
+
+    public static String get_Rate_Limit_Reviews_Burst() {
+        return serverConfigMap.get("Rate_Limit_Reviews_Burst");
+    }
+
+    public static String get_Rate_Limit_User_Reviews_Per_Second() {
+        return serverConfigMap.get("Rate_Limit_User_Reviews_Per_Second");
+    }
+
+    public static String get_Rate_Limit_User_Reviews_Burst() {
+        return serverConfigMap.get("Rate_Limit_User_Reviews_Burst");
+    }
+
+    public static String get_Compression_Threshold_Bytes() {
+        return serverConfigMap.get("Compression_Threshold_Bytes");
+    }
+
+    public static String get_Push_Queue_Capacity() {
+        return serverConfigMap.get("Push_Queue_Capacity");
+    }
+
+    public static String get_Review_Storage() {
+        return serverConfigMap.get("Review_Storage");
+    }
+
+    public static String get_Max_Sessions() {
+        return serverConfigMap.get("Max_Sessions");
+    }
+
+    public static String get_Session_Ttl_Seconds() {
+        return serverConfigMap.get("Session_Ttl_Seconds");
+    }
+
+    public static String get_Waiting_Seconds_Metrics() {
+        return serverConfigMap.get("Waiting_Seconds_Metrics");
+    }
+
     public static String getStartFileHotelsPath(){
         return serverConfigMap.get("START_FILE_HOTELS_PATH");
     }
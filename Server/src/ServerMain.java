@@ -4,17 +4,25 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.nio.*;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.mindrot.jbcrypt.BCrypt;
 
@@ -23,12 +31,69 @@ public class ServerMain {
     public static final String Ip = ServerFileConfigurationReader.getIp();
     public static final int DEFAULT_PORT = ServerFileConfigurationReader.getPort();
     private static ConcurrentHashMap<String, Hotel> hotels; 
+    private static final ConcurrentHashMap<String, ConcurrentHashMap<String, Hotel>> hotelsByCityAndName = new ConcurrentHashMap<>(); // Indice città -> nome -> hotel.
+    private static final ConcurrentHashMap<String, List<Hotel>> hotelsByCity = new ConcurrentHashMap<>(); // Indice città -> hotel della città.
     private static ConcurrentHashMap<String, User> users = FilesJsonReader.getUsersFromJson(); // Lettura user da file oppure map vuota.
     private static ConcurrentHashMap<String, RankingStructure> rankings = new ConcurrentHashMap<>(); // Contiene una ranking structure per ogni città.
     private static final int N_THREAD = 5;
     private static ScheduledExecutorService scheduledThreadPool = Executors.newScheduledThreadPool(N_THREAD); // ThreadPool utilizzato per la scrittura su file di Hotels e Users.
     private static final int WAITING_SECONDS_RANKING_RECALCULATION = Integer.parseInt(ServerFileConfigurationReader.get_Waiting_Seconds_Ranking_Recalculation()); // Minuti che intervallano i task di scrittura su file di Hotel e Users.
     private static final int WAITING_SECONDS_FILE_UPDATE = Integer.parseInt(ServerFileConfigurationReader.get_Waiting_Seconds_File_Update());
+    private static final String SERVER_MODE = ServerFileConfigurationReader.get_Server_Mode(); // "nio" (reactor), "virtual" (un thread virtuale per connessione) oppure "async" (NIO.2).
+    private static final int N_ASYNC_THREADS = Integer.parseInt(ServerFileConfigurationReader.get_Async_Group_Threads()); // Thread dell'AsynchronousChannelGroup in modalità async.
+    private static final int N_REACTORS = Integer.parseInt(ServerFileConfigurationReader.get_Number_Of_Reactors()); // Numero di thread reactor che gestiscono le connessioni.
+    private static final int BCRYPT_LOG_ROUNDS = Integer.parseInt(ServerFileConfigurationReader.get_BCrypt_Log_Rounds()); // Fattore di costo di BCrypt.
+    private static final int N_AUTH_THREADS = Integer.parseInt(ServerFileConfigurationReader.get_Auth_Threads());
+    private static final int AUTH_QUEUE_CAPACITY = Integer.parseInt(ServerFileConfigurationReader.get_Auth_Queue_Capacity());
+    // ThreadPool limitato in cui vengono eseguite registrazioni e login, così che BCrypt non blocchi i reactor.
+    private static final ThreadPoolExecutor authThreadPool = new ThreadPoolExecutor(N_AUTH_THREADS, N_AUTH_THREADS, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(AUTH_QUEUE_CAPACITY));
+    public static final int WRITE_HIGH_WATER_MARK = Integer.parseInt(ServerFileConfigurationReader.get_Write_High_Water_Mark()); // Byte in attesa di invio oltre i quali una connessione smette di essere letta.
+    public static final int RESPONSE_CACHE_MAX_HOTEL_BYTES = Integer.parseInt(ServerFileConfigurationReader.get_Response_Cache_Max_Hotel_Bytes()); // Dimensione massima della codifica di un hotel mantenuta in cache.
+    private static final int MAX_SESSIONS = Integer.parseInt(ServerFileConfigurationReader.get_Max_Sessions()); // Numero massimo di sessioni riprendibili con un token.
+    private static final int SESSION_TTL_SECONDS = Integer.parseInt(ServerFileConfigurationReader.get_Session_Ttl_Seconds()); // Durata di una sessione dalla sua creazione.
+    private static final SessionStore sessions = new SessionStore(MAX_SESSIONS, SESSION_TTL_SECONDS * 1000L);
+    public static final long IDLE_TIMEOUT_MILLIS = Long.parseLong(ServerFileConfigurationReader.get_Idle_Timeout_Seconds()) * 1000; // Inattività dopo cui una connessione viene chiusa, 0 per nessun limite.
+    public static final int IDLE_CHECK_MILLIS = 1000; // Intervallo di controllo delle connessioni inattive (durata di un tick delle TimingWheel).
+    public static final int IDLE_WHEEL_SLOTS = 64; // Numero di slot delle TimingWheel delle connessioni inattive.
+    private static final int MAX_CONNECTIONS = Integer.parseInt(ServerFileConfigurationReader.get_Max_Connections()); // Numero massimo di connessioni aperte contemporaneamente.
+    private static final AtomicInteger activeConnections = new AtomicInteger(0); // Connessioni aperte, in tutte le modalità.
+    private static final AtomicLong reapedConnections = new AtomicLong(0); // Connessioni chiuse perché inattive.
+    private static final AtomicLong refusedConnections = new AtomicLong(0); // Connessioni rifiutate perché oltre MAX_CONNECTIONS.
+    public static final int BUSY = -6; // Codice delle operazioni costose rifiutate perché il server è sovraccarico.
+    private static final int OVERLOAD_CHECK_MILLIS = Integer.parseInt(ServerFileConfigurationReader.get_Overload_Check_Millis()); // Intervallo dei controlli di sovraccarico.
+    private static final long OVERLOAD_LOOP_LAG_MILLIS = Long.parseLong(ServerFileConfigurationReader.get_Overload_Loop_Lag_Millis());
+    private static final int OVERLOAD_AUTH_QUEUE_DEPTH = Integer.parseInt(ServerFileConfigurationReader.get_Overload_Auth_Queue_Depth());
+    private static final long OVERLOAD_PENDING_WRITE_BYTES = Long.parseLong(ServerFileConfigurationReader.get_Overload_Pending_Write_Bytes());
+    private static final int OVERLOAD_LARGE_CITY_HOTELS = Integer.parseInt(ServerFileConfigurationReader.get_Overload_Large_City_Hotels()); // Hotel oltre i quali una searchHotels è costosa, 0 per ricavarli dagli hotel caricati.
+    private static int largeCityHotels = Integer.MAX_VALUE; // Soglia usata da isShed, calcolata all'avvio (vedi largeCityHotelsInitialization).
+    private static volatile OverloadDetector overloadDetector = null; // Creato nel main, prima che partano i thread che servono le connessioni.
+    private static final AtomicLong shedRequests = new AtomicLong(0); // Richieste rifiutate con BUSY.
+    public static final int PROTOCOL_VERSION = 1; // Versione più recente del protocollo supportata dal server.
+    public static final int CAPABILITY_BATCH = 1; // searchHotelBatch (9).
+    public static final int CAPABILITY_RESPONSE_FORMAT = 1 << 1; // setResponseFormat (10) e formati binari.
+    public static final int CAPABILITY_PAGINATION = 1 << 2; // searchHotelsPage (11).
+    public static final int CAPABILITY_SESSIONS = 1 << 3; // Login con token (12) e ripresa della sessione (13).
+    public static final int CAPABILITY_COMPRESSION = 1 << 4; // Risposte grandi di searchHotel, searchHotels, searchHotelBatch e searchHotelsPage compresse.
+    public static final int CAPABILITY_PUSH = 1 << 5; // Notifiche push sulla connessione TCP dopo il login.
+    // Funzionalità opzionali offerte dal server durante l'handshake.
+    private static final int SERVER_CAPABILITIES = CAPABILITY_BATCH | CAPABILITY_RESPONSE_FORMAT | CAPABILITY_PAGINATION | CAPABILITY_SESSIONS
+            | CAPABILITY_COMPRESSION | CAPABILITY_PUSH;
+    public static final int PUSH_FRAME = Integer.MIN_VALUE; // Primo intero di una notifica push: nessuna risposta inizia con questo valore.
+    private static final int PUSH_QUEUE_CAPACITY = Integer.parseInt(ServerFileConfigurationReader.get_Push_Queue_Capacity()); // Notifiche in attesa per connessione oltre le quali le nuove vengono scartate.
+    private static final Set<ObjectAttach> pushSubscribers = ConcurrentHashMap.newKeySet(); // Connessioni con utente loggato che ricevono le notifiche push.
+    private static final AtomicLong droppedPushes = new AtomicLong(0); // Notifiche scartate perché la coda della connessione era piena.
+    public static final int COMPRESSED_RESPONSE = 1; // Flag della risposta compressa con Deflater.
+    private static final int COMPRESSION_THRESHOLD_BYTES = Integer.parseInt(ServerFileConfigurationReader.get_Compression_Threshold_Bytes()); // Byte oltre i quali una risposta viene compressa.
+    public static final int RATE_LIMITED = -7; // Codice delle registrazioni e recensioni rifiutate perché oltre il limite di frequenza.
+    private static final double REGISTRATIONS_PER_SECOND = Double.parseDouble(ServerFileConfigurationReader.get_Rate_Limit_Registrations_Per_Second()); // Registrazioni al secondo per connessione, 0 per nessun limite.
+    private static final int REGISTRATIONS_BURST = Integer.parseInt(ServerFileConfigurationReader.get_Rate_Limit_Registrations_Burst());
+    private static final double REVIEWS_PER_SECOND = Double.parseDouble(ServerFileConfigurationReader.get_Rate_Limit_Reviews_Per_Second()); // Recensioni al secondo per connessione, 0 per nessun limite.
+    private static final int REVIEWS_BURST = Integer.parseInt(ServerFileConfigurationReader.get_Rate_Limit_Reviews_Burst());
+    private static final double USER_REVIEWS_PER_SECOND = Double.parseDouble(ServerFileConfigurationReader.get_Rate_Limit_User_Reviews_Per_Second()); // Recensioni al secondo per utente, 0 per nessun limite.
+    private static final int USER_REVIEWS_BURST = Integer.parseInt(ServerFileConfigurationReader.get_Rate_Limit_User_Reviews_Burst());
+    private static final AtomicLong connectionRateLimited = new AtomicLong(0); // Richieste rifiutate dal limite della connessione.
+    private static final AtomicLong userRateLimited = new AtomicLong(0); // Recensioni rifiutate dal limite dell'utente.
+    private static final int WAITING_SECONDS_METRICS = Integer.parseInt(ServerFileConfigurationReader.get_Waiting_Seconds_Metrics());
     private static AtomicBoolean stop = new AtomicBoolean(false);
 
 
@@ -41,6 +106,41 @@ public class ServerMain {
         }
         catch (IOException e){
             System.err.println("Nessun file disponibile.");
+            return;
+        }
+        ServerMain.hotelsIndexInitialization();
+    }
+
+    /**
+    * Costruisce gli indici per città e per nome degli hotel, così che le ricerche non debbano
+    * scorrere tutti gli hotel. Gli hotel vengono caricati soltanto all'avvio, quindi gli indici
+    * non cambiano in seguito.
+    */
+    private static void hotelsIndexInitialization() {
+        HashMap<String, List<Hotel>> lists = new HashMap<>();
+        for(Hotel hotel : ServerMain.hotels.values()) {
+            ServerMain.hotelsByCityAndName.computeIfAbsent(hotel.getCity(), city -> new ConcurrentHashMap<>()).put(hotel.getName(), hotel);
+            lists.computeIfAbsent(hotel.getCity(), city -> new ArrayList<>()).add(hotel);
+        }
+        for(Map.Entry<String, List<Hotel>> entry : lists.entrySet())
+            ServerMain.hotelsByCity.put(entry.getKey(), List.copyOf(entry.getValue()));
+        ServerMain.largeCityHotelsInitialization();
+    }
+
+    /**
+    * Calcola il numero di hotel da cui una searchHotels è considerata costosa da isShed. Se
+    * Overload_Large_City_Hotels è 0 sono costose le città con più del doppio della media degli
+    * hotel per città: con città tutte della stessa dimensione, come quelle di Hotels.json (10 hotel
+    * ciascuna), nessuna searchHotels viene rifiutata, perché nessuna costa più delle altre.
+    * Altrimenti viene usato il valore configurato.
+    */
+    private static void largeCityHotelsInitialization() {
+        if (ServerMain.OVERLOAD_LARGE_CITY_HOTELS > 0) {
+            ServerMain.largeCityHotels = ServerMain.OVERLOAD_LARGE_CITY_HOTELS;
+        }
+        else if (!ServerMain.hotelsByCity.isEmpty()) {
+            int average = (ServerMain.hotels.size() + ServerMain.hotelsByCity.size() - 1) / ServerMain.hotelsByCity.size();
+            ServerMain.largeCityHotels = 2 * average + 1;
         }
     }
 
@@ -48,8 +148,8 @@ public class ServerMain {
     * Inizializza la ConcurrentHashMap rankings.
     */
     private static void rankingsInitialization() {
-        for(Map.Entry<String, Hotel> entry : ServerMain.hotels.entrySet()) {
-            rankings.putIfAbsent(entry.getValue().getCity(), new RankingStructure(entry.getValue().getCity()));
+        for(String city : ServerMain.hotelsByCity.keySet()) {
+            rankings.putIfAbsent(city, new RankingStructure(city));
         }
     }
     
@@ -65,582 +165,589 @@ public class ServerMain {
         return ServerMain.rankings;
     }
 
-    /**
-    * Restituisce l'hotel associato ad un determinato id.
-    *
-    * @param id id del relativo hotel.
-    * @return l'hotel associato a 'id'.
-    */
-    public static Hotel getHotelFromId(String id) {
-        return ServerMain.hotels.get(id);
+    public static ThreadPoolExecutor getAuthThreadPool() {
+        return ServerMain.authThreadPool;
+    }
+
+    // Restituisce il numero di registrazioni e login in attesa di un thread di autenticazione.
+    public static int getAuthQueueDepth() {
+        return ServerMain.authThreadPool.getQueue().size();
     }
 
     /**
-     * Restituisce una concurrentHashMap di tutti gli hotel situati in una determinata città.
+     * Conta una connessione appena accettata, se il numero di connessioni aperte non ha ancora
+     * raggiunto MAX_CONNECTIONS; altrimenti la connessione deve essere chiusa subito.
      *
-     * @param city il nome della città per la quale filtrare gli hotel. Assume che {@code city} sia non
-     *        null e corrispoinda esattamente al nome della città desiderata.
-     * @return una nuova CuncurrentHashMap che contiene come chiavi gli identificatori univoci degli hotel
-     *         e come valori tutti gli oggetti di tipo Hotel corrispondenti situati nella città specificata.
+     * @return true se la connessione può essere servita, false se va rifiutata.
      */
-    public static ConcurrentHashMap<String, Hotel> getHotelsOfCity(String city) {
-        ConcurrentHashMap<String, Hotel> hotelsOfCity = new ConcurrentHashMap<>();
-        for(Map.Entry<String, Hotel> entry : ServerMain.hotels.entrySet()) {
-            if(entry.getValue().getCity().equals(city))
-                hotelsOfCity.put(entry.getKey(), entry.getValue());
+    public static boolean admitConnection() {
+        while (true) {
+            int active = ServerMain.activeConnections.get();
+            if (active >= ServerMain.MAX_CONNECTIONS) {
+                ServerMain.refusedConnections.incrementAndGet();
+                return false;
+            }
+            if (ServerMain.activeConnections.compareAndSet(active, active + 1))
+                return true;
         }
-        return hotelsOfCity;
+    }
+
+    // Da chiamare alla chiusura di ogni connessione ammessa da admitConnection.
+    public static void connectionClosed() {
+        ServerMain.activeConnections.decrementAndGet();
+    }
+
+    // Da chiamare quando una connessione viene chiusa perché inattiva da IDLE_TIMEOUT_MILLIS.
+    public static void connectionReaped() {
+        ServerMain.reapedConnections.incrementAndGet();
+    }
+
+    public static int getActiveConnections() {
+        return ServerMain.activeConnections.get();
+    }
+
+    public static long getReapedConnections() {
+        return ServerMain.reapedConnections.get();
+    }
+
+    public static long getRefusedConnections() {
+        return ServerMain.refusedConnections.get();
     }
 
     /**
-     * Configura una SelectionKey per operazioni di scrittura e aggiorna l'oggetto allegato.
+     * Stabilisce se una richiesta va rifiutata con BUSY perché il server è sovraccarico. Vengono
+     * rifiutate soltanto le operazioni costose: la registrazione, che calcola un hash BCrypt, e la
+     * searchHotels delle città con almeno largeCityHotels hotel; le altre (searchHotel,
+     * showBadge, le pagine della classifica, ...) continuano a essere eseguite.
      *
-     * @param output il risultato dell'operazione che è stata effettuata precedentemente. Se è -5 significa che
-     *               il client ha chiuso la connessione durante l'esecuzione dell'operazione e quindi la chiave
-     *               viene cancellata.
-     * @param operation l'identificativo dell'operazione che è stata effettuata precedentemente.
-     * @param key   la SelectionKey da configurare per la scrittura o annulare.
+     * @param request la richiesta decodificata.
+     * @return true se la richiesta va rifiutata.
      */
-    private static void setWritableKey(int output, int operation, SelectionKey key){
-        if(output == -5) // Il client ha chiuso il canale
-            key.cancel();
-        else {
-            ObjectAttach objectAttach = (ObjectAttach) key.attachment();
-            key.interestOps(SelectionKey.OP_WRITE);
-            objectAttach.setOperation(operation);
-            objectAttach.setOutput(output);
+    public static boolean isShed(Request request) {
+        if (ServerMain.overloadDetector == null || !ServerMain.overloadDetector.isOverloaded())
+            return false;
+        boolean expensive;
+        switch (request.getOperation()) {
+            case 1:
+                expensive = true;
+                break;
+            case 5:
+                RankingStructure ranking = ServerMain.rankings.get(request.getString(0));
+                expensive = ranking != null && ranking.getSnapshot(0).size() >= ServerMain.largeCityHotels;
+                break;
+            default:
+                expensive = false;
         }
+        if (expensive)
+            ServerMain.shedRequests.incrementAndGet();
+        return expensive;
+    }
+
+    public static long getShedRequests() {
+        return ServerMain.shedRequests.get();
     }
 
     /**
-     * Legge un intero dal SocketChannel del client.
+     * Stabilisce se una registrazione (1) o una recensione (6) va rifiutata con RATE_LIMITED perché
+     * supera il limite di frequenza. Il controllo usa soltanto il codice dell'operazione e lo stato
+     * della connessione, quindi viene eseguito prima di decodificare la richiesta: le richieste
+     * rifiutate non allocano stringhe. Le registrazioni sono limitate per connessione, le recensioni
+     * per connessione e per utente, così che un utente non aggiri il limite aprendo più connessioni.
+     * I bucket vengono creati al primo uso, poi il controllo non alloca.
      *
-     * @param client il SocketChannel del client da cui leggere l'intero.
-     * @return l'intero letto dal client o -5 se il canale è stato chiuso durante la lettura.
+     * @param operation il codice dell'operazione.
+     * @param objectAttach l'attachment della connessione del client.
+     * @return true se la richiesta va rifiutata.
      */
-    private static int readIntegerFromClient(SocketChannel client) {
-        try{
-            ByteBuffer inputBuffer = ByteBuffer.allocate(Integer.BYTES);
-            // Ricevo il codice dal server.
-            int nBytesRead = client.read(inputBuffer);
-            // Controllo che il canale non sia stato chiuso.
-            if(nBytesRead == -1 || !client.isOpen()) {
-                try {
-                    client.close();
-                } catch (IOException closeEx) {
-                    System.err.println("Error closing client channel: " + closeEx.getMessage());
-                }
-                return -5;
+    public static boolean isRateLimited(int operation, ObjectAttach objectAttach) {
+        if (operation == 1 && ServerMain.REGISTRATIONS_PER_SECOND > 0) {
+            TokenBucket bucket = objectAttach.getRegistrationBucket();
+            if (bucket == null) {
+                bucket = new TokenBucket(ServerMain.REGISTRATIONS_PER_SECOND, ServerMain.REGISTRATIONS_BURST);
+                objectAttach.setRegistrationBucket(bucket);
+            }
+            if (!bucket.tryAcquire(System.nanoTime())) {
+                ServerMain.connectionRateLimited.incrementAndGet();
+                return true;
             }
-            inputBuffer.flip();
-            // ritorno l'intero ricevuto
-            return inputBuffer.getInt();
         }
-        catch (IOException e) {
-            System.err.println("Error reading integer from client: " + e.getMessage());
-            try {
-                client.close();
-            } catch (IOException closeEx) {
-                System.err.println("Error closing client channel: " + closeEx.getMessage());
+        else if (operation == 6) {
+            long now = System.nanoTime();
+            if (ServerMain.REVIEWS_PER_SECOND > 0) {
+                TokenBucket bucket = objectAttach.getReviewBucket();
+                if (bucket == null) {
+                    bucket = new TokenBucket(ServerMain.REVIEWS_PER_SECOND, ServerMain.REVIEWS_BURST);
+                    objectAttach.setReviewBucket(bucket);
+                }
+                if (!bucket.tryAcquire(now)) {
+                    ServerMain.connectionRateLimited.incrementAndGet();
+                    return true;
+                }
+            }
+            // Senza login la recensione viene comunque rifiutata da insertReview.
+            User user = ServerMain.USER_REVIEWS_PER_SECOND > 0 ? ServerMain.users.get(objectAttach.getUsername()) : null;
+            if (user != null && !user.getReviewBucket(ServerMain.USER_REVIEWS_PER_SECOND, ServerMain.USER_REVIEWS_BURST).tryAcquire(now)) {
+                ServerMain.userRateLimited.incrementAndGet();
+                return true;
             }
-            return -5;
         }
+        return false;
+    }
 
+    public static long getConnectionRateLimited() {
+        return ServerMain.connectionRateLimited.get();
     }
 
-    /**
-     * Legge una sequenza di byte da un SocketChannel client.
-     *
-     * @param client il SocketChannel del client da cui leggere la sequenza di byte.
-     * @param nByteToRead il numero di bytes da leggere dal canale.
-     * @return un array di bytes contenente i dati letti. Se si verifica un errore viene
-     *         restituito un array di byte di lunghezza 1.
-     */
-    private static byte[] readByteStringFromClient(SocketChannel client, int nByteToRead) {
-        try{
-            ByteBuffer inputBuffer = ByteBuffer.allocate(nByteToRead);
-            // Ricevo il codice dal server.
-            int nBytesRead = client.read(inputBuffer);
-            // Controllo che il canale non sia stato chiuso.
-            if(nBytesRead == -1 || !client.isOpen()) {
-                try {
-                    client.close();
-                } catch (IOException closeEx) {
-                    System.err.println("Error closing client channel: " + closeEx.getMessage());
-                }
-                return new byte[1];
-            }
-            // Prendo i byte dal ByteBuffer
-            inputBuffer.flip();
-            byte[] bytesReceived = new byte[nByteToRead];
-            inputBuffer.get(bytesReceived);
-            // Ritorno i bytes ricevuti
-            return bytesReceived;
-        }
-        catch (IOException e) {
-            System.err.println("Error reading integer from client: " + e.getMessage());
-            try {
-                client.close();
-            } catch (IOException closeEx) {
-                System.err.println("Error closing client channel: " + closeEx.getMessage());
-            }
-            return new byte[1];
+    public static long getUserRateLimited() {
+        return ServerMain.userRateLimited.get();
+    }
+
+    // True per le operazioni che usano BCrypt e vengono quindi eseguite nel ThreadPool di autenticazione.
+    public static boolean isAuthOperation(int operation) {
+        return operation == 1 || operation == 2 || operation == 12;
+    }
+
+    // Codice inviato quando il ThreadPool di autenticazione è pieno: -1 per la registrazione, -4 per i login.
+    public static int overloadedOutput(int operation) {
+        return operation == 1 ? -1 : -4;
+    }
+
+    // Iscrive alle notifiche push la connessione appena loggata, se ha concordato la funzionalità con l'handshake.
+    private static void subscribePush(ObjectAttach objectAttach) {
+        if (objectAttach.hasCapability(ServerMain.CAPABILITY_PUSH)) {
+            objectAttach.enablePush(ServerMain.PUSH_QUEUE_CAPACITY);
+            ServerMain.pushSubscribers.add(objectAttach);
         }
     }
 
+    // Toglie la connessione dalle notifiche push, al logout o alla chiusura; le notifiche in attesa vengono scartate.
+    public static void unsubscribePush(ObjectAttach objectAttach) {
+        if (ServerMain.pushSubscribers.remove(objectAttach))
+            objectAttach.disablePush();
+    }
+
     /**
-     * Scrive un intero al SocketChannel del client.
+     * Invia una notifica a tutte le connessioni iscritte alle notifiche push. La notifica viene
+     * codificata una volta sola (PUSH_FRAME, lunghezza e byte UTF-8 del messaggio) e accodata
+     * senza bloccarsi nella coda limitata di ogni connessione; il thread che gestisce la connessione
+     * la invia appena non c'è una risposta a metà. Se la coda di una connessione è piena (un client
+     * che non legge) la notifica per quella connessione viene scartata, così che un client lento non
+     * rallenti l'invio agli altri.
      *
-     * @param client il SocketChannel del client a cui scrivere l'intero.
-     * @param key la SelectionKey associata al canale del client.
+     * @param message il testo della notifica.
      */
-    private static boolean writeIntToClient (SocketChannel client, SelectionKey key) {
-        ObjectAttach objectAttach = (ObjectAttach) key.attachment();
-        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES);
-        //System.out.println("[writeIntToClient] inviato intero: " + objectAttach.getOutput());
-        buffer.putInt(objectAttach.getOutput());
-        buffer.flip();
-        int bytesWritten = 0;
-        try {
-            while (buffer.hasRemaining()) {
-                bytesWritten = client.write(buffer);    
-            }
-            //System.out.println("[writeIntToClient] scritti numero byte: " + bytesWritten);
-            key.interestOps(SelectionKey.OP_READ);
-            return true;
-        }
-        catch (IOException ex) {
-            try {
-                client.close();
-            } catch (IOException closeEx) {
-                System.err.println("Error closing client channel: " + closeEx.getMessage());
-            }
-            key.cancel();
-            return false;
+    public static void pushNotification(String message) {
+        if (ServerMain.pushSubscribers.isEmpty())
+            return;
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        if (2 * Integer.BYTES + text.length > BufferPool.BUFFER_SIZE)
+            return; // Una notifica deve entrare in un solo buffer del pool.
+        ByteBuffer frame = ByteBuffer.allocate(2 * Integer.BYTES + text.length);
+        frame.putInt(ServerMain.PUSH_FRAME);
+        frame.putInt(text.length);
+        frame.put(text);
+        for (ObjectAttach objectAttach : ServerMain.pushSubscribers) {
+            if (objectAttach.offerPush(frame.array()))
+                objectAttach.getPushWakeup().run();
+            else
+                ServerMain.droppedPushes.incrementAndGet();
         }
     }
 
+    public static int getPushSubscribers() {
+        return ServerMain.pushSubscribers.size();
+    }
+
+    public static long getDroppedPushes() {
+        return ServerMain.droppedPushes.get();
+    }
+
     /**
-     * Scrive un intero e una stringa al client attraverso un SocketChannel. Metodo utilizzato specificatamente
-     *        per inviare al client il risultato dell'operazione e, se andata a buon fine, una stringa
-     *        rappresentante le informazioni di un Hotel o di un insieme di Hotel.
+     * Imposta gli hotel della risposta in corso della connessione. Se la connessione ha concordato
+     * la compressione e la risposta supera COMPRESSION_THRESHOLD_BYTES, la risposta viene compressa
+     * a blocchi con il Deflater della connessione durante l'invio.
      *
-     * @param client il SocketChannel del client a cui scrivere l'intero.
-     * @param key la SelectionKey associata al canale del client.
+     * @param objectAttach l'attachment della connessione del client.
+     * @param stream gli hotel della risposta.
      */
-    private static boolean writeIntAndStringToClient (SocketChannel client, SelectionKey key) {
-        // Se l'operazione è andata a buon fine in objectAttach è presente la stringa da inviare al client.
-        ObjectAttach objectAttach = (ObjectAttach) key.attachment();
-        int nBytesToSend = Integer.BYTES;
-        if(objectAttach.getOutput() == 0)
-            nBytesToSend += Integer.BYTES + objectAttach.getMessagge().getBytes().length;
-        //("Bytes della stringa: " + objectAttach.getMessagge().getBytes().length);
-        //System.out.println("Bytes da inviare al client: " + nBytesToSend);
-        // searchHotel o searchHotels è andata a buon fine: devo inviare sia il risultato dell'operazione che una stringa.
-        if(nBytesToSend>4) {
-            ByteBuffer outputBuffer = ByteBuffer.allocate(nBytesToSend);
-            // Inserisco sul outputBuffer l'output di searchHotel o searchHotels.
-            outputBuffer.putInt(objectAttach.getOutput());
-            // Inserisco sul outputBuffer la lunghezza della stringa che rappresenta l'hotel o l'insieme di hotel richiesto.
-            outputBuffer.putInt(objectAttach.getMessagge().getBytes().length);
-            // Inserisco sul outputBuffer la stringa che rappresenta l'hotel o l'insieme di hotel richiesto.
-            outputBuffer.put(objectAttach.getMessagge().getBytes());
-            // Preparo l'outputBuffer al'invio dei dati.
-            outputBuffer.flip();
-            int bytesWritten = 0;
-            // Scrivo il contenuto del buffer al client.
-            try {
-                while (outputBuffer.hasRemaining()) {
-                    bytesWritten = client.write(outputBuffer);
-                }
-                //System.out.println("[writeIntToClient] scritti numero byte: " + bytesWritten);
-                key.interestOps(SelectionKey.OP_READ);
-                return true;
-            } catch (IOException ex) {
-                try {
-                    client.close();
-                } catch (IOException closeEx) {
-                    System.err.println("Error closing client channel: " + closeEx.getMessage());
-                }
-                key.cancel();
-                return false;
-            }
+    private static void setResponseStream(ObjectAttach objectAttach, HotelsResponseStream stream) {
+        if (objectAttach.hasCapability(ServerMain.CAPABILITY_COMPRESSION) && stream.getLength() > ServerMain.COMPRESSION_THRESHOLD_BYTES)
+            stream.compress(objectAttach.getDeflater());
+        objectAttach.setStream(stream);
+    }
 
-        }
-        // L'operazione non è NON andata a buon fine: devo inviare solo il risultato dell'operazione.
-        else{ 
-            if(!ServerMain.writeIntToClient(client, key))
-                return false;
-            else{
-                return true;
-            }
-        }
+    /**
+    * Restituisce l'hotel associato ad un determinato id.
+    *
+    * @param id id del relativo hotel.
+    * @return l'hotel associato a 'id'.
+    */
+    public static Hotel getHotelFromId(String id) {
+        return ServerMain.hotels.get(id);
+    }
 
+    /**
+     * Restituisce tutti gli hotel situati in una determinata città, usando l'indice per città.
+     *
+     * @param city il nome della città per la quale filtrare gli hotel. Assume che {@code city} sia non
+     *        null e corrispoinda esattamente al nome della città desiderata.
+     * @return una lista non modificabile degli hotel situati nella città specificata, vuota se la
+     *         città non ha hotel.
+     */
+    public static List<Hotel> getHotelsOfCity(String city) {
+        return ServerMain.hotelsByCity.getOrDefault(city, List.of());
     }
 
     /**
-     * Metodo che gestisce la registrazione di un nuovo utente ricevendo username e password dal
-     * client, ne verifica l'univocità e li memorizza. La password viene ricevuta in chiaro e poi
-     * viene memorizzata criptata usando BCrypt.
+     * Metodo che gestisce la registrazione di un nuovo utente a partire da username e password
+     * ricevuti dal client, ne verifica l'univocità e li memorizza. La password viene ricevuta in
+     * chiaro e poi viene memorizzata criptata usando BCrypt.
      *
-     * @param client il SocketChannel del client a cui scrivere l'intero.
-     * @param key la SelectionKey associata al canale del client.
+     * @param request la richiesta decodificata: contiene username e password.
+     * @param objectAttach l'attachment della connessione del client.
      * @return int Un codice che rappresenta lo stato della registrazione:
      *              0 la registrazione è avvenuta con successo.
      *              1 l'username è già in uso.
-     *             -1 se si verifica un errore di I/O.
-     *             -5 se la connessione è stata chiusa improvvisamente.
+     *             -1 se il server è sovraccarico (restituito dal Reactor).
+     *             -6 (BUSY) se il server è in sovraccarico e rifiuta le operazioni costose (vedi isShed).
+     *             -7 (RATE_LIMITED) se la connessione supera il limite di registrazioni (vedi isRateLimited).
      */
-    private static int registration(SocketChannel client, SelectionKey key) {
-        // Ricezione username e password
-        String username = "";
-        String hashedPassword = "";
-        int i = 0; // Necessario per distinguere quale dei due dati sto processando: 0 username, 1 password.
-
-        // Due cicli: primo ciclo leggo l'username, secondo ciclo leggo la password.
-        while(i<2) {
-            // Ricevo dal client l'intero (4 byte) che mi identifica la lunghezza della stringa.
-            int string_length = ServerMain.readIntegerFromClient(client);
-            // Se il canale è stato chiuso esco.
-            if(string_length == -5) return -5;
-            // Prendo i byte dal ByteBuffer e li metto in un array di byte per convertirli in stringa.
-            byte[] stringBytes = new byte[string_length];
-            stringBytes = ServerMain.readByteStringFromClient(client, string_length);
-            // Se il canale è stato chiuso esco.
-            if(stringBytes.length == 1 && stringBytes[0] == 0) return -5;
-            // Conversione in stringa
-            if(i == 0) {
-                username = new String(stringBytes);
-                i++;
-            }
-            else {
-                hashedPassword = BCrypt.hashpw(new String(stringBytes), BCrypt.gensalt());
-                i++;
-            }
-
-        }
+    private static int registration(Request request, ObjectAttach objectAttach) {
+        String username = request.getString(0);
+        String hashedPassword = BCrypt.hashpw(request.getString(1), BCrypt.gensalt(ServerMain.BCRYPT_LOG_ROUNDS));
 
         // Aggiungo il client all'interno della CuncurrentHashMap dei clients
         if(ServerMain.users.putIfAbsent(username, new User (username, hashedPassword)) != null)
             return 1;
 
-        ObjectAttach objectAttach = new ObjectAttach();
-        key.attach(objectAttach);
-
         return 0;
-    
     }
 
     /**
      * Metodo che gestisce il login di un utente. Prima controlla che l'utente non sia già loggato,
-     * poi legge username e password inviati dal client e infine veirifica l'esistenza dell' username
-     * nel sistema e confronta la password ricevuta con quella hashata sul file.
+     * poi veirifica l'esistenza dell'username ricevuto nel sistema e confronta la password ricevuta
+     * con quella hashata sul file.
      *
-     * @param client il SocketChannel del client a cui scrivere l'intero.
-     * @param key la SelectionKey associata al canale del client.
+     * @param request la richiesta decodificata: contiene username e password.
+     * @param objectAttach l'attachment della connessione del client.
      * @return int Un codice che rappresenta lo stato del login:
      *              0 la registrazione è avvenuta con successo.
      *             -1 se l'utente è già loggato.
      *             -2 se l'username non esiste.
      *             -3 se la password è errata.
-     *             -4 se si verifica un errore di I/O.
-     *             -5 se la connessione è stata chiusa improvvisamente.
+     *             -4 se il server è sovraccarico (restituito dal Reactor).
      */
-    private static int login (SocketChannel client, SelectionKey key) {
-        String username = "";
-        String password = "";
-        // Recupero l'attach.
-        ObjectAttach objectAttach = null;
-        if(key.attachment() != null)
-            objectAttach = (ObjectAttach) key.attachment();
-        else {
-            objectAttach = new ObjectAttach();
-            key.attach(objectAttach);
-        }
-        // Controllo che l'utente non si loggato
-        if(objectAttach.getUsername().isEmpty()) {
-            // L'utente non è loggato, ricezione username e password.
-            int i = 0; // Necessario per distinguere quale dei due dati sto processando: 0 username, 1 password.
-
-            // Due cicli: primo ciclo leggo l'username, secondo ciclo leggo la password.
-            while(i<2) {
-                // Ricevo dal client l'intero (4 byte) che mi identifica la lunghezza della stringa.
-                int string_length = ServerMain.readIntegerFromClient(client);
-                // Se il canale è stato chiuso esco.
-                if(string_length == -5) return -5;
-                // Ricevo dal client i byte che rappresentano la stringa.
-                byte[] stringBytes = new byte[string_length];
-                stringBytes = ServerMain.readByteStringFromClient(client, string_length);
-                // Se il canale è stato chiuso esco.
-                if(stringBytes.length == 1 && stringBytes[0] == 0) return -5;
-                // Conversione in stringa
-                if(i == 0) {
-                    username = new String(stringBytes);
-                    i++;
-                }
-                else {
-                    password = new String(stringBytes);
-                    i++;
-                }
+    private static int login (Request request, ObjectAttach objectAttach) {
+        int output = ServerMain.checkCredentials(request, objectAttach);
+        if(output == 0)
+            ServerMain.completeLogin(request, objectAttach);
+        return output;
+    }
 
-            }
-            // Errore: l'username non esiste.
-            if (! ServerMain.users.containsKey(username))
-                return -2;
-            // Errore: password sbagliata.
-            if(! BCrypt.checkpw(password, ServerMain.users.get(username).getHashedPassword()))
-                return -3;
+    /**
+     * Verifica le credenziali di un login (login e loginWithToken) senza modificare l'attachment,
+     * così che possa essere eseguito nel ThreadPool di autenticazione mentre la connessione viene
+     * chiusa o reclamata dal thread che la gestisce.
+     *
+     * @param request la richiesta decodificata: contiene username e password.
+     * @param objectAttach l'attachment della connessione del client, soltanto letto.
+     * @return int gli stessi codici della login.
+     */
+    private static int checkCredentials (Request request, ObjectAttach objectAttach) {
+        // Errore: l'utente è già loggato.
+        if(!objectAttach.getUsername().isEmpty())
+            return -1;
+        String username = request.getString(0);
+        String password = request.getString(1);
+        User user = ServerMain.users.get(username);
+        // Errore: l'username non esiste.
+        if (user == null)
+            return -2;
+        // Errore: password sbagliata.
+        if(! BCrypt.checkpw(password, user.getHashedPassword()))
+            return -3;
+        return 0;
+    }
 
+    /**
+     * Applica alla connessione un login con credenziali già verificate: salva l'username, iscrive
+     * la connessione alle notifiche push e, per loginWithToken, crea la sessione e salva il token da
+     * inviare al client. Va chiamato dal thread che gestisce la connessione.
+     *
+     * @param request la richiesta decodificata di login o loginWithToken.
+     * @param objectAttach l'attachment della connessione del client.
+     */
+    private static void completeLogin (Request request, ObjectAttach objectAttach) {
+        String username = request.getString(0);
+        objectAttach.setUsername(username);
+        ServerMain.subscribePush(objectAttach);
+        if(request.getOperation() == 12) {
+            String token = ServerMain.sessions.createSession(username);
+            objectAttach.setSessionToken(token);
+            objectAttach.setMessagge(token);
         }
-        else {
-            // Errore: l'utente è già loggato.
+    }
+
+    /**
+     * Metodo che gestisce il login come la login, ma in caso di successo crea anche una sessione
+     * e salva nell'attachment il suo token, da inviare al client: con il token il client può
+     * riprendere la sessione su un'altra connessione senza ripetere la verifica della password.
+     *
+     * @param request la richiesta decodificata: contiene username e password.
+     * @param objectAttach l'attachment della connessione del client.
+     * @return int gli stessi codici della login.
+     */
+    private static int loginWithToken (Request request, ObjectAttach objectAttach) {
+        return ServerMain.login(request, objectAttach);
+    }
+
+    /**
+     * Metodo che riprende una sessione a partire dal token ricevuto dal client, senza BCrypt.
+     * In caso di successo l'utente risulta loggato sulla connessione e il suo username viene
+     * salvato nell'attachment, da inviare al client.
+     *
+     * @param request la richiesta decodificata: contiene il token della sessione.
+     * @param objectAttach l'attachment della connessione del client.
+     * @return int Un codice che rappresenta lo stato della ripresa:
+     *              0 la sessione è stata ripresa.
+     *             -1 se l'utente è già loggato.
+     *             -2 se il token non esiste o la sessione è scaduta.
+     */
+    private static int resumeSession (Request request, ObjectAttach objectAttach) {
+        // Errore: l'utente è già loggato.
+        if(!objectAttach.getUsername().isEmpty())
             return -1;
-        }
-        
-        // Login effettuato correttamente.
+        String token = request.getString(0);
+        String username = ServerMain.sessions.resumeSession(token);
+        // Errore: sessione inesistente o scaduta.
+        if(username == null)
+            return -2;
         objectAttach.setUsername(username);
+        objectAttach.setSessionToken(token);
+        objectAttach.setMessagge(username);
+        ServerMain.subscribePush(objectAttach);
         return 0;
     }
 
     /**
-     * Metodo che gestisce il logout di un utente connesso tramite SocketChannel. Prima verifica
-     * se l'utente è già loggato, poi legge il nome utente inviato dal client e lo confronta con
-     * quello memorizzato nell'attachment della SelectionKey, infine effettua il logout.
+     * Metodo che gestisce il logout di un utente. Prima verifica se l'utente è loggato,
+     * poi confronta il nome utente inviato dal client con quello memorizzato nell'attachment
+     * della connessione, infine effettua il logout.
      *
-     * @param client il SocketChannel del client a cui scrivere l'intero.
-     * @param key la SelectionKey associata al canale del client.
+     * @param request la richiesta decodificata: contiene l'username.
+     * @param objectAttach l'attachment della connessione del client.
      * @return int Un intero che rappresenta lo stato del tentativo di logout:
      *             0 se il logout è stato completato con successo.
      *            -1 se l'utente non ha fatto precedentemente il login.
      *            -2 se l'username fornito non corrisponde a quello con cui l'utente era loggato.
-     *            -3 se si verifica un errore di I/O
-     *            -5 se la connessione è stata chiusa improvvisamente.
      */
-    private static int logout (SocketChannel client, SelectionKey key) {
-        // Leggo l'intero (4 byte) che mi identifica la lunghezza della stringa.
-        int string_length = ServerMain.readIntegerFromClient(client);
-        // Se il canale è stato chiuso esco.
-        if(string_length == -5) return -5;
-        // // Ricevo dal client i byte che rappresentano la stringa..
-        byte[] stringBytes = ServerMain.readByteStringFromClient(client, string_length);
-        // Se il canale è stato chiuso esco.
-        if(stringBytes.length == 1 && stringBytes[0] == 0) return -5;
-        // Conversione in stringa
-        String username = new String(stringBytes);
-
-        // Controllo che l'utente non sia già loggato.
-        if(key.attachment() == null || ((ObjectAttach) key.attachment()).getUsername().isEmpty()) {
-            key.attach(new ObjectAttach());
+    private static int logout (Request request, ObjectAttach objectAttach) {
+        // Controllo che l'utente sia loggato.
+        if(objectAttach.getUsername().isEmpty())
             return -1; // L'utente non è loggato.
-        }
 
-        ObjectAttach objectAttach = (ObjectAttach) key.attachment();
-        
         // Errore: l'username non è lo stesso con cui si è fatto login.
-        //System.out.println(objectAttach.getUsername()+ username);
-        if(!objectAttach.getUsername().equals(username)){
+        if(!objectAttach.getUsername().equals(request.getString(0)))
             return -2;
+
+        // L'username è lo stesso con cui si è fatto login: il logout chiude anche l'eventuale sessione.
+        objectAttach.setUsername("");
+        ServerMain.unsubscribePush(objectAttach);
+        if(!objectAttach.getSessionToken().isEmpty()) {
+            ServerMain.sessions.removeSession(objectAttach.getSessionToken());
+            objectAttach.setSessionToken("");
         }
-        // L'username è lo stesso con cui si è fatto login.
         return 0;
     }
 
     /**
      * Metodo che cerca un hotel specifico basandosi sul nome e sulla città dell'hotel stesso.
-     * Riceve due stringhe dal client: prima il nome dell'hotel poi la città, fa la ricerca
-     * nell'insieme degli hotel, se lo trova salva le informazioni nella attachment della
-     * SelectionKey.
+     * Fa la ricerca nell'insieme degli hotel e, se lo trova, salva le informazioni
+     * nell'attachment della connessione.
      *
-     * @param client il SocketChannel del client a cui scrivere l'intero.
-     * @param key la SelectionKey associata al canale del client.
+     * @param request la richiesta decodificata: contiene il nome dell'hotel e la città.
+     * @param objectAttach l'attachment della connessione del client.
      * @return int Un intero che indica il risultato dell'operazione:
      *             0 se l'hotel è stato trovato con successo.
      *            -1 se non viene trovato alcun hotel ai criteri di ricerca.
-     *            -2 per errori di I/O.
-     *            -5 se la connessione è stata chiusa improvvisamente.
      */
-    private static int searchHotel (SocketChannel client, SelectionKey key) {
-        String hotelName = "";
-        String city = "";
-        ObjectAttach objectAttach = null;
-        if(key.attachment() != null)
-            objectAttach = (ObjectAttach) key.attachment();
-        else
-            objectAttach = new ObjectAttach();
-
-       int i = 0; // Necessario per distinguere quale dei due dati sto processando: 0 hotelName, 1 città.
-
-        // Due cicli: primo ciclo leggo il hotelName, secondo ciclo leggo la citta.
-        while(i<2) {
-            // Ricevo dal client l'intero (4 byte) che mi identifica la lunghezza della stringa.
-            int string_length = ServerMain.readIntegerFromClient(client);
-            // Se il canale è stato chiuso esco.
-            if(string_length == -5) return -5;
-            // Ricevo dal client i byte che rappresentano la stringa.
-            byte[] stringBytes = new byte[string_length];
-            stringBytes = ServerMain.readByteStringFromClient(client, string_length);
-            // Se il canale è stato chiuso esco.
-            if(stringBytes.length == 1 && stringBytes[0] == 0) return -5;
-            // Conversione in stringa
-            if(i == 0) {
-                hotelName = new String(stringBytes);
-                //System.out.println("Nome hotel: '" + hotelName + "'.");
-                i++;
-            }
-            else {
-                city = new String(stringBytes);
-                //System.out.println("Citta: '" + city + "'.");
-                i++;
-            }
-        }
-
-        // Ricerca dell'hotel
-        for (Map.Entry<String, Hotel> entry : ServerMain.getHotelsOfCity(city).entrySet()) {
-            if(entry.getValue().getName().equals(hotelName)) {
-                String temp = entry.getValue().toString();
-                objectAttach.setMessagge(temp);
-                break;
-            }
-        }
-        
-        // Se l'utente non era loggato aggiungo l'attach.
-        if(key.attachment() == null) {
-            key.attach(objectAttach);
-        }
-        
+    private static int searchHotel (Request request, ObjectAttach objectAttach) {
+        Hotel hotel = ServerMain.findHotel(request.getString(0), request.getString(1));
         // ERRORE: non esiste nessun hotel con quel nome in quella città.
-        if(objectAttach.getMessagge().length()<=1)
+        if(hotel == null)
             return -1;
-        
+        // L'hotel viene codificato dal Reactor durante l'invio.
+        ServerMain.setResponseStream(objectAttach, new HotelsResponseStream(HotelsResponseStream.SINGLE, Collections.singletonList(hotel), 1, objectAttach.getResponseFormat()));
+        return 0;
+    }
+
+    /**
+     * Metodo che cerca più hotel in un'unica richiesta, ciascuno in base al nome e alla città,
+     * con la stessa ricerca della searchHotel. Ogni hotel ha il proprio esito, così che un hotel
+     * inesistente non faccia fallire l'intera richiesta. Gli esiti e gli hotel trovati vengono
+     * salvati nell'attachment della connessione.
+     *
+     * @param request la richiesta decodificata: contiene una coppia (nome, città) per ogni hotel.
+     * @param objectAttach l'attachment della connessione del client.
+     * @return int 0, gli hotel trovati (null per quelli inesistenti) sono nell'attachment.
+     */
+    private static int searchHotelBatch (Request request, ObjectAttach objectAttach) {
+        Hotel[] hotels = new Hotel[request.getStringCount() / 2];
+        for(int i = 0; i < hotels.length; i++)
+            hotels[i] = ServerMain.findHotel(request.getString(2 * i), request.getString(2 * i + 1));
+        ServerMain.setResponseStream(objectAttach, new HotelsResponseStream(HotelsResponseStream.BATCH, Arrays.asList(hotels), 1, objectAttach.getResponseFormat()));
         return 0;
     }
 
     /**
-     * Il metodo ricerca e inserisce nell'attachment della SelectionKey una
+     * Cerca un hotel in base al nome e alla città.
+     *
+     * @param hotelName il nome dell'hotel.
+     * @param city la città dell'hotel.
+     * @return l'hotel cercato, null se non esiste nessun hotel con quel nome in quella città.
+     */
+    private static Hotel findHotel(String hotelName, String city) {
+        ConcurrentHashMap<String, Hotel> hotelsOfCity = ServerMain.hotelsByCityAndName.get(city);
+        return hotelsOfCity == null ? null : hotelsOfCity.get(hotelName);
+    }
+
+    /**
+     * Il metodo ricerca e inserisce nell'attachment della connessione una
      * classifica degli hotel in base alla città specificata dal client.
-     * Il metodo legge una stringa che rappresenta il nome
-     * della città dal client tramite SocketChannel. Utilizza questa città per
-     * recuperare la classifica degli hotel.
      *
-     * @param client il SocketChannel del client a cui scrivere l'intero.
-     * @param key la SelectionKey associata al canale del client.
+     * @param request la richiesta decodificata: contiene il nome della città.
+     * @param objectAttach l'attachment della connessione del client.
      * @return int Un intero che indica il risultato dell'operazione:
      *             0 se la classifica è stata trovata con successo.
      *            -1 se non esiste alcuna classifica per quella città.
-     *            -2 per errori di I/O.
-     *            -5 se la connessione è stata chiusa improvvisamente.
-     * @throws IOException
+     *            -6 (BUSY) se il server è in sovraccarico e la città ha molti hotel (vedi isShed).
      */
-    private static int searchHotels (SocketChannel client, SelectionKey key) {
-        String city = "";
-        ObjectAttach objectAttach = null;
-        if(key.attachment() != null)
-            objectAttach = (ObjectAttach) key.attachment();
-        else
-            objectAttach = new ObjectAttach();
-
-        // Ricevo dal client l'intero (4 byte) che mi identifica la lunghezza della stringa.
-        int string_length = ServerMain.readIntegerFromClient(client);
-        // Se il canale è stato chiuso esco.
-        if(string_length == -5) return -5;
-        // Ricevo dal client l'insieme di byte che mi identifica la stringa.
-        byte[] stringBytes = new byte[string_length];
-        stringBytes = ServerMain.readByteStringFromClient(client, string_length);
-        // Se il canale è stato chiuso esco.
-        if(stringBytes.length == 1 && stringBytes[0] == 0) return -5;
-        // Conversione in stringa
-        city = new String(stringBytes);
+    private static int searchHotels (Request request, ObjectAttach objectAttach) {
         // Recupero la rankingStructure per quella città
-        RankingStructure temp= ServerMain.rankings.get(city);
-        // Se la città esiste prendo la classifica
-        if(temp != null) {
-            objectAttach.setMessagge(temp.toString());
-        }
+        RankingStructure temp = ServerMain.rankings.get(request.getString(0));
+        // ERRORE: non esiste nessun hotel in quella città.
+        if(temp == null)
+            return -1;
+        // Invio l'ultima classifica pubblicata: a differenza della ConcurrentSkipListSet non cambia durante l'invio.
+        RankingSnapshot snapshot = temp.getSnapshot(0);
+        ServerMain.setResponseStream(objectAttach, new HotelsResponseStream(HotelsResponseStream.RANKING, snapshot.getPage(0, snapshot.size()), 1, objectAttach.getResponseFormat()));
+        return 0;
+    }
 
-        // Se l'utente non era loggato aggiungo l'attach.
-        if(key.attachment() == null) {
-            key.attach(objectAttach);
-        }
-        
+    /**
+     * Il metodo inserisce nell'attachment della connessione una pagina della classifica degli hotel
+     * della città specificata dal client. La pagina è presa dalla classifica pubblicata con l'epoca
+     * richiesta, così che le pagine successive alla prima restino coerenti con essa anche se nel
+     * frattempo la classifica è stata ricalcolata.
+     *
+     * @param request la richiesta decodificata: contiene la città, l'epoca (0 per l'ultima classifica),
+     *                la posizione del primo hotel e il numero massimo di hotel.
+     * @param objectAttach l'attachment della connessione del client.
+     * @return int Un intero che indica il risultato dell'operazione:
+     *             0 se la pagina è stata trovata con successo.
+     *            -1 se non esiste alcuna classifica per quella città.
+     *            -2 se la classifica di quell'epoca non è più disponibile.
+     *            -3 se offset o limite sono negativi.
+     */
+    private static int searchHotelsPage (Request request, ObjectAttach objectAttach) {
+        int epoch = request.getInteger(0);
+        int offset = request.getInteger(1);
+        int limit = request.getInteger(2);
+        if(offset < 0 || limit < 0)
+            return -3;
+        RankingStructure temp = ServerMain.rankings.get(request.getString(0));
         // ERRORE: non esiste nessun hotel in quella città.
-        if(objectAttach.getMessagge().isEmpty())
+        if(temp == null)
             return -1;
+        RankingSnapshot snapshot = temp.getSnapshot(epoch);
+        // ERRORE: la classifica è stata ricalcolata più volte dalla prima pagina.
+        if(snapshot == null)
+            return -2;
+        objectAttach.setRankingPage(snapshot.getEpoch(), snapshot.size());
+        ServerMain.setResponseStream(objectAttach, new HotelsResponseStream(HotelsResponseStream.RANKING, snapshot.getPage(offset, limit), offset + 1, objectAttach.getResponseFormat()));
+        return 0;
+    }
 
+    /**
+     * Il metodo imposta il formato con cui vengono inviati alla connessione gli hotel di
+     * searchHotel, searchHotels, searchHotelBatch e searchHotelsPage.
+     *
+     * @param request la richiesta decodificata: contiene il formato richiesto.
+     * @param objectAttach l'attachment della connessione del client.
+     * @return int Un intero che indica il risultato dell'operazione:
+     *             0 se il formato è stato impostato.
+     *            -1 se il formato non esiste.
+     */
+    private static int setResponseFormat (Request request, ObjectAttach objectAttach) {
+        int format = request.getInteger(0);
+        if(format != ObjectAttach.TEXT_FORMAT && format != ObjectAttach.BINARY_FORMAT && format != ObjectAttach.BINARY_FORMAT_WITH_REVIEWS)
+            return -1;
+        objectAttach.setResponseFormat(format);
+        return 0;
+    }
+
+    /**
+     * Il metodo esegue l'handshake facoltativo della connessione: il client invia la versione più
+     * recente del protocollo che conosce e le funzionalità opzionali che sa usare, il server
+     * risponde con la versione concordata (la minore tra le due) e con le funzionalità supportate
+     * da entrambi, che restano memorizzate nella connessione. I client che non fanno l'handshake
+     * restano in modalità legacy (versione 0, nessuna funzionalità concordata) e continuano a usare
+     * le operazioni di sempre. L'handshake può essere fatto una sola volta per connessione.
+     *
+     * @param request la richiesta decodificata: contiene versione e funzionalità del client.
+     * @param objectAttach l'attachment della connessione del client.
+     * @return int Un intero che indica il risultato dell'operazione:
+     *             0 se l'handshake è avvenuto; nella risposta seguono versione e funzionalità concordate.
+     *            -1 se la versione del client non è valida.
+     *            -2 se l'handshake è già stato fatto sulla connessione.
+     */
+    private static int handshake (Request request, ObjectAttach objectAttach) {
+        int version = request.getInteger(0);
+        if(version < 1)
+            return -1;
+        if(objectAttach.getProtocolVersion() != 0)
+            return -2;
+        objectAttach.setProtocol(Math.min(version, ServerMain.PROTOCOL_VERSION), request.getInteger(1) & ServerMain.SERVER_CAPABILITIES);
         return 0;
     }
 
     /**
      * Questo metodo gestisce l'inserimento di una recensione da parte di
-     * un utente. Riceve dal client il nome, la città dell'hotel e una
-     * serie di interi che rappresentano la recensione tramite
-     * SocketChannel. Aggiunge la recensione al relativo oggetto Hotel e
+     * un utente. Aggiunge la recensione al relativo oggetto Hotel e
      * incrementa il numero di recensioni per quel utente.
-     * @param client il SocketChannel del client a cui scrivere l'intero.
-     * @param key la SelectionKey associata al canale del client.
+     *
+     * @param request la richiesta decodificata: contiene nome e città dell'hotel e i cinque voti.
+     * @param objectAttach l'attachment della connessione del client.
      * @return int Un intero che indica il risultato dell'operazione:
      *             0 se la recensione è stata inserita con successo.
      *            -1 se l'utente tenta di eseguire l'operazione senza essere loggato.
-     *            -2 per errori di I/O.
      *            -3 hotel inesistente.
-     *            -5 se la connessione è stata chiusa improvvisamente.
-     * @throws IOException
+     *            -4 se un voto non è compreso tra 0 e 5.
+     *            -7 (RATE_LIMITED) se la connessione o l'utente supera il limite di recensioni (vedi isRateLimited).
      */
-    private static int insertReview (SocketChannel client, SelectionKey key) {
-        String hotelName = "";
-        String city = "";
-        int[] scores = new int[5];
-        // Recupero il vecchio ObjectAttach
-        ObjectAttach objectAttach = (ObjectAttach) key.attachment();
-
-        int i = 0; // Necessario per distinguere quale dei due dati sto processando: 0 nome hotel, 1 citta.
-        // Due cicli: primo ciclo leggo il nome dell'hotel, secondo ciclo leggo la citta.
-        while(i<2) {
-            // Ricevo dal client l'intero (4 byte) che mi identifica la lunghezza della string.
-            int string_length = ServerMain.readIntegerFromClient(client);
-            if(string_length == -5) return -5;
-            // Ricevo dal client l'insieme di byte che mi identifica la stringa.
-            byte[] stringBytes = new byte[string_length];
-            stringBytes = ServerMain.readByteStringFromClient(client, string_length);
-            // Se il canale è stato chiuso esco.
-            if(stringBytes.length == 1 && stringBytes[0] == 0) return -5;
-            // Conversione in stringa
-            if(i == 0)
-                hotelName = new String(stringBytes);
-            else
-                city = new String(stringBytes);
-            i++;
-        }
-        // Ricezione dei voti che l'utente ha assegnato all'hotel
-        for(i=0; i<5; i++) {
-            scores[i] = ServerMain.readIntegerFromClient(client);
-        }
+    private static int insertReview (Request request, ObjectAttach objectAttach) {
+        String hotelName = request.getString(0);
+        String city = request.getString(1);
+        int[] scores = request.getIntegers();
 
         // Controllo che l'utente sia loggato.
-        if(key.attachment() == null)
+        if(objectAttach.getUsername().isEmpty())
             return -1; // L'utente non è loggato.
 
+        // Controllo i voti: HotelsResponseStream si basa sul fatto che abbiano una sola cifra.
+        for(int score : scores) {
+            if(score < 0 || score > 5)
+                return -4;
+        }
+
         // Controllo che la città sia presente
         if(ServerMain.getRankings().containsKey(city)) {
-            // Ricerca dell'id dell'hotel a cui deve essere aggiunta la recensione
-            String idHotel = "";
-            for (Map.Entry<String, Hotel> entry : ServerMain.getHotelsOfCity(city).entrySet()) {
-                if (entry.getValue().getCity().equals(city) && entry.getValue().getName().equals(hotelName)) {
-                    idHotel = entry.getValue().getId();
-                    break;
-                }
-            }
-            if (idHotel.isEmpty())
+            // Ricerca dell'hotel a cui deve essere aggiunta la recensione
+            Hotel hotel = ServerMain.findHotel(hotelName, city);
+            if (hotel == null)
                 return -3; // Hotel inesistente.
-
-            // Utilizzo compute() per aggiornare una parte specifica dell'hotel
-            ServerMain.hotels.compute(idHotel, (id, hotel) -> {
-                if (hotel != null) {
-                    // Aggiungo la recensione all'insieme di recensioni per quell'hotel.
-                    hotel.addReview(scores);
-                }
-                // Restituisci l'hotel, modificato o non modificato
-                return hotel;
-            });
+            // Aggiungo la recensione all'insieme di recensioni per quell'hotel (addReview è sincronizzato).
+            hotel.addReview(scores);
 
             // Incremento il numero di recensioni per quel user
             ServerMain.users.get(objectAttach.getUsername()).addRecensione();
@@ -653,56 +760,98 @@ public class ServerMain {
 
     /**
      * Questo metodo gestisce la richiesta del badge da parte dell'utente.
-     * Il metodo riceve l'username dal client tramite SocketChannel, recupera il badge
-     * associato a quell'username e lo mette nell'attach della SelectionKey.
+     * Recupera il badge associato all'username ricevuto e lo mette nell'attachment
+     * della connessione.
      *
-     * @param client il SocketChannel del client a cui scrivere l'intero.
-     * @param key la SelectionKey associata al canale del client.
+     * @param request la richiesta decodificata: contiene l'username.
+     * @param objectAttach l'attachment della connessione del client.
      * @return int Un intero che indica il risultato dell'operazione:
      *             0 se il badge è stato recuperato con successo.
      *            -1 se l'utente tenta di visualizzare il badge senza essere loggato.
-     *            -5 se la connessione è stata chiusa improvvisamente.
-     * @throws IOException
      */
-    private static int showBadge (SocketChannel client, SelectionKey key) {
-        // Ricevo l'username dal client.
-        int usernameLength = ServerMain.readIntegerFromClient(client);
-        if(usernameLength == -5) return -5;
-        byte[] byteUsername = ServerMain.readByteStringFromClient(client, usernameLength);
-        // Se il canale è stato chiuso esco.
-        if(byteUsername.length == 1 && byteUsername[0] == 0) return -5;
-        String username = new String (byteUsername);
-        // Controllo che l'utente non sia loggato.
-        if(key.attachment() == null)
-            return -1; // L'utente non è loggato.
-        ObjectAttach objectAttach = (ObjectAttach) key.attachment();
+    private static int showBadge (Request request, ObjectAttach objectAttach) {
+        String username = request.getString(0);
         if(objectAttach.getUsername().isEmpty() || ! objectAttach.getUsername().equals(username))
             return -1; // L'utente non è loggato o è loggato con username diverso.
-        else { 
+        else {
             // L'utente è loggato quindi è sicuramente presente dentro clients: recupero il badge per quell'utente.
             User user = ServerMain.users.get(objectAttach.getUsername());
-            String badge = user.getBadge();
-            objectAttach.setMessagge(badge);
+            objectAttach.setMessagge(user.getBadge());
         }
         // Operazione andata a buon fine.
         return 0;
     }
 
     /**
-     * Questo metodo si preoccupa di chiudere la connessione con un client.
-     * Si occupa di eliminare la selection key associata al client e di chiudere
-     * il SocketChannel.
-     * @param client il SocketChannel del client a cui scrivere l'intero.
-     * @param key la SelectionKey associata al canale del client.
-     * @throws IOException
+     * Esegue una richiesta già decodificata di una connessione. Il metodo è chiamato
+     * concorrentemente dai thread dei reactor: lo stato condiviso (hotels, users e rankings)
+     * è contenuto in strutture concorrenti.
+     *
+     * @param request la richiesta decodificata, con codice operazione da 1 a 7 o da 9 a 14.
+     * @param objectAttach l'attachment della connessione del client.
+     * @return int il risultato dell'operazione, da inviare al client.
      */
-    private static void closeConnection(SocketChannel client, SelectionKey key) throws IOException{
-        try {
-            client.close();
-        } catch (IOException closeEx) {
-            System.err.println("Error closing client channel: " + closeEx.getMessage());
+    public static int executeRequest(Request request, ObjectAttach objectAttach) {
+        switch (request.getOperation()) {
+            case 1: return ServerMain.registration(request, objectAttach);
+            case 2: return ServerMain.login(request, objectAttach);
+            case 3: return ServerMain.logout(request, objectAttach);
+            case 4: return ServerMain.searchHotel(request, objectAttach);
+            case 5: return ServerMain.searchHotels(request, objectAttach);
+            case 6: return ServerMain.insertReview(request, objectAttach);
+            case 7: return ServerMain.showBadge(request, objectAttach);
+            case 9: return ServerMain.searchHotelBatch(request, objectAttach);
+            case 10: return ServerMain.setResponseFormat(request, objectAttach);
+            case 12: return ServerMain.loginWithToken(request, objectAttach);
+            case 13: return ServerMain.resumeSession(request, objectAttach);
+            case 14: return ServerMain.handshake(request, objectAttach);
+            default: return ServerMain.searchHotelsPage(request, objectAttach); // case 11
         }
-        key.cancel();
+    }
+
+    /**
+     * Esegue nel ThreadPool di autenticazione la parte di registrazione e login che usa BCrypt.
+     * L'attachment non viene modificato: il login riuscito va applicato con completeAuthRequest
+     * dal thread che gestisce la connessione, soltanto se nel frattempo la connessione non è stata
+     * chiusa, così che una connessione chiusa non resti iscritta alle notifiche push.
+     *
+     * @param request la richiesta decodificata di registrazione, login o loginWithToken.
+     * @param objectAttach l'attachment della connessione del client, soltanto letto.
+     * @return int il risultato dell'operazione, da passare a completeAuthRequest.
+     */
+    public static int executeAuthRequest(Request request, ObjectAttach objectAttach) {
+        if (request.getOperation() == 1)
+            return ServerMain.registration(request, objectAttach);
+        return ServerMain.checkCredentials(request, objectAttach);
+    }
+
+    /**
+     * Completa sulla connessione una richiesta eseguita da executeAuthRequest: per i login riusciti
+     * salva l'utente e, per loginWithToken, la sessione. Va chiamato dal thread che gestisce la
+     * connessione, dopo aver controllato che non sia stata chiusa.
+     *
+     * @param request la richiesta passata a executeAuthRequest.
+     * @param objectAttach l'attachment della connessione del client.
+     * @param output il risultato restituito da executeAuthRequest.
+     */
+    public static void completeAuthRequest(Request request, ObjectAttach objectAttach, int output) {
+        if (output == 0 && request.getOperation() != 1)
+            ServerMain.completeLogin(request, objectAttach);
+    }
+
+    /**
+     * Restituisce il reactor con il minor numero di connessioni attive.
+     *
+     * @param reactors i reactor del server.
+     * @return il reactor meno carico.
+     */
+    private static Reactor leastLoadedReactor(Reactor[] reactors) {
+        Reactor best = reactors[0];
+        for (Reactor reactor : reactors) {
+            if (reactor.getConnections() < best.getConnections())
+                best = reactor;
+        }
+        return best;
     }
     
     public static void main(String[] args) {
@@ -714,28 +863,76 @@ public class ServerMain {
         ServerMain.scheduledThreadPool.scheduleWithFixedDelay(new HotelsToJsonTask(), WAITING_SECONDS_FILE_UPDATE, WAITING_SECONDS_FILE_UPDATE, TimeUnit.SECONDS);
         ServerMain.scheduledThreadPool.scheduleWithFixedDelay(new UsersToJsonTask(), WAITING_SECONDS_FILE_UPDATE, WAITING_SECONDS_FILE_UPDATE, TimeUnit.SECONDS);
         ServerMain.scheduledThreadPool.scheduleWithFixedDelay(new UpdateRankingsTask(), 0, WAITING_SECONDS_RANKING_RECALCULATION, TimeUnit.SECONDS);
+        ServerMain.scheduledThreadPool.scheduleWithFixedDelay(new MetricsTask(), WAITING_SECONDS_METRICS, WAITING_SECONDS_METRICS, TimeUnit.SECONDS);
         /*RICORDATI DI CAMBIARE DA SECONDS a MINUTES*/
         ServerSocketChannel serverSocketChannel = null;
         Selector selector = null;
+        // In modalità virtual e async i reactor non vengono creati: ogni connessione è gestita da un ConnectionTask
+        // nel proprio thread virtuale oppure da un'AsyncConnection nei thread dell'AsynchronousChannelGroup.
+        boolean virtualMode = ServerMain.SERVER_MODE.equals("virtual");
+        boolean asyncMode = ServerMain.SERVER_MODE.equals("async");
+        int nReactors = virtualMode || asyncMode ? 0 : ServerMain.N_REACTORS;
+        Reactor[] reactors = new Reactor[nReactors];
+        Thread[] reactorThreads = new Thread[nReactors];
+        ExecutorService connectionThreads = null; // Thread virtuali delle connessioni, soltanto in modalità virtual.
+        if (virtualMode) {
+            try {
+                connectionThreads = VirtualThreads.newThreadPerTaskExecutor("Connection-");
+            }
+            catch (IllegalStateException e) {
+                System.out.println("Server mode virtual is not available: " + e.getMessage() + "\n");
+                ServerMain.scheduledThreadPool.shutdownNow();
+                return;
+            }
+        }
+        Set<SocketChannel> connections = ConcurrentHashMap.newKeySet(); // Connessioni attive in modalità virtual.
+        // In modalità virtual le connessioni inattive vengono chiuse da un task periodico; nelle altre modalità dal Reactor o dall'AsyncConnection.
+        IdleReaperTask idleReaper = virtualMode && ServerMain.IDLE_TIMEOUT_MILLIS > 0 ? new IdleReaperTask() : null;
+        if (idleReaper != null)
+            ServerMain.scheduledThreadPool.scheduleWithFixedDelay(idleReaper, ServerMain.IDLE_CHECK_MILLIS, ServerMain.IDLE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+        AsynchronousChannelGroup asyncGroup = null;
+        System.out.println("Server mode: " + (virtualMode ? "virtual" : asyncMode ? "async" : "nio"));
         try {
-            serverSocketChannel = ServerSocketChannel.open();
-            ServerSocket ss = serverSocketChannel.socket();
             InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(ServerMain.Ip), ServerMain.DEFAULT_PORT);
-            ss.bind(address);
-            serverSocketChannel.configureBlocking(false);
             selector = Selector.open();
-            serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+            if (asyncMode) {
+                // Le connessioni vengono accettate dall'AsynchronousChannelGroup: il selector del main thread
+                // resta vuoto e serve soltanto ad attendere la richiesta di terminazione.
+                AtomicInteger asyncThreadCount = new AtomicInteger(0);
+                asyncGroup = AsynchronousChannelGroup.withFixedThreadPool(ServerMain.N_ASYNC_THREADS,
+                        runnable -> new Thread(runnable, "Async-" + asyncThreadCount.getAndIncrement()));
+                AsyncConnection.acceptConnections(AsynchronousServerSocketChannel.open(asyncGroup).bind(address));
+            }
+            else {
+                serverSocketChannel = ServerSocketChannel.open();
+                ServerSocket ss = serverSocketChannel.socket();
+                ss.bind(address);
+                serverSocketChannel.configureBlocking(false);
+                serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+            }
+            // Creazione dei reactor a cui l'acceptor assegna le connessioni.
+            for (int i = 0; i < nReactors; i++) {
+                reactors[i] = new Reactor(ServerMain.stop);
+                reactorThreads[i] = new Thread(reactors[i], "Reactor-" + i);
+            }
         }
         catch (IOException e) {
             System.out.println("IO error occurred: " + e.toString() + "\n");
             return;
         }
+        // Controllo periodico del sovraccarico, basato sui reactor (se ci sono) e sulla coda di autenticazione.
+        ServerMain.overloadDetector = new OverloadDetector(reactors, ServerMain.OVERLOAD_LOOP_LAG_MILLIS, ServerMain.OVERLOAD_AUTH_QUEUE_DEPTH, ServerMain.OVERLOAD_PENDING_WRITE_BYTES);
+        ServerMain.scheduledThreadPool.scheduleWithFixedDelay(ServerMain.overloadDetector, ServerMain.OVERLOAD_CHECK_MILLIS, ServerMain.OVERLOAD_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+        for (Thread reactorThread : reactorThreads)
+            reactorThread.start();
 
         // Partenza del thread per terminare il server
         Scanner scanner = new Scanner(System.in);
         Thread listeningStopRequest = new Thread(new StopServerTask(ServerMain.stop, scanner, selector));
         listeningStopRequest.start();
 
+        // Il thread main fa da acceptor: accetta le connessioni e le assegna al reactor meno carico
+        // oppure, in modalità virtual, a un nuovo thread virtuale.
         try {
             while (!ServerMain.stop.get()) {
                 try {
@@ -752,146 +949,35 @@ public class ServerMain {
                 while (iterator.hasNext() && !ServerMain.stop.get()) {
                     SelectionKey key = iterator.next();
                     iterator.remove(); // rimuove la chiave dal Selected Set, ma non dal Registered Set
-                    try {
-                        if (key.isAcceptable()) {
-                            ServerSocketChannel server = (ServerSocketChannel) key.channel();
-                            SocketChannel client = server.accept();
-                            System.out.println("Accepted connection from " + client);
-                            client.configureBlocking(false);
-                            // Dopo aver accettato la connessione registro il client per la lettura 
-                            SelectionKey key2 = client.register(selector,SelectionKey.OP_READ);
-                        }
-                        else if(key.isReadable()){
-                            SocketChannel client = (SocketChannel) key.channel();
-                            int operation = ServerMain.readIntegerFromClient(client);
-                            if(operation == -5) { // Il client ha chiuso il canale mentre il server leggeva l'operazione che voleva effettuare.
-                                key.cancel(); // Cancello la chiave
-                                break;
-                            }
-                            //System.out.println("L'operazione che vuole effettuare il client è la: "+ operation);
-
-                            switch (operation) {
-                                case 1: int output = ServerMain.registration(client, key);
-                                        // Riempo l'objectAttach e setto la key a writable.
-                                        ServerMain.setWritableKey(output, operation, key);
-                                        break;
-
-                                case 2: output = ServerMain.login(client, key);
-                                        // Riempo l'objectAttach e setto la key a writable.
-                                        ServerMain.setWritableKey(output, operation, key);
-                                        break;
-
-                                case 3: output = ServerMain.logout(client, key);
-                                        // Riempo l'objectAttach e setto la key a writable.
-                                        ServerMain.setWritableKey(output, operation, key);
-                                        break;
-
-                                case 4: output = ServerMain.searchHotel(client, key);
-                                        // Riempo l'objectAttach e setto la key a writable.
-                                        ServerMain.setWritableKey(output, operation, key);
-                                        break;
-
-                                case 5: output = ServerMain.searchHotels(client, key);
-                                        // Riempo l'objectAttach e setto la key a writable.
-                                        ServerMain.setWritableKey(output, operation, key);
-                                        break;
-
-                                case 6: output = ServerMain.insertReview(client, key);
-                                        // Riempo l'objectAttach e setto la key a writable.
-                                        ServerMain.setWritableKey(output, operation, key);
-                                        break;
-
-                                case 7: output = ServerMain.showBadge(client, key);
-                                        // Riempo l'objectAttach e setto la key a writable.
-                                        ServerMain.setWritableKey(output, operation, key);
-                                        break;
-                                
-                                case 8: ServerMain.closeConnection(client, key);
-                                        break;
-
+                    if (key.isAcceptable()) {
+                        ServerSocketChannel server = (ServerSocketChannel) key.channel();
+                        SocketChannel client;
+                        try {
+                            client = server.accept();
+                            if (client == null)
+                                continue;
+                            // Oltre MAX_CONNECTIONS la connessione viene chiusa subito.
+                            if (!ServerMain.admitConnection()) {
+                                client.close();
+                                continue;
                             }
-
+                            client.configureBlocking(virtualMode);
                         }
-                        else if (key.isWritable()) { 
-                            SocketChannel client = (SocketChannel) key.channel();
-                            ObjectAttach objectAttach = (ObjectAttach) key.attachment();
-
-                            // Quale operazione è stata effettuata da quel client.
-                            switch (objectAttach.getOperation()){
-
-                                case 1: // Scrive l'output dell'operazione (intero) al client e mette la key in OP_READ.
-                                        ServerMain.writeIntToClient(client, key);
-                                        key.attach(null);
-                                        break;
-
-                                case 2: // Scrive l'output dell'operazione (intero) al client e mette la key in OP_READ.
-                                        ServerMain.writeIntToClient(client, key);
-                                        // Se il login è andato a buon fine metto l'attach altrimenti null.
-                                        if(objectAttach.getOutput() == 0) 
-                                            key.attach(objectAttach);
-                                        else
-                                            key.attach(null);
-                                        break;
-
-                                case 3: // Scrive l'output dell'operazione (intero) al client e mette la key in OP_READ.
-                                        ServerMain.writeIntToClient(client, key);
-                                        // Dopo il logout metto null come attach se l'operazione è andata a buon fine.
-                                        if(objectAttach.getOutput() == 0 || objectAttach.getOutput() == -1)
-                                            key.attach(null);
-                                        else
-                                            key.attach(objectAttach);
-                                        break;
-                                        
-                                case 4: // Scrive l'output della richiesta e l'hotel, se presente, al client; in più mette la key in OP_READ.
-                                        ServerMain.writeIntAndStringToClient(client, key);
-                                        // Gestione dell'attach.
-                                        if(objectAttach.getOutput() == 0) { // L'operazione è andata a buon fine.
-                                            if(objectAttach.getUsername().isEmpty()) // L'utente non era loggato.
-                                                key.attach(null);
-                                            else { // L'utente era loggato.
-                                                objectAttach.setMessagge("");
-                                                key.attach(objectAttach);
-                                            }
-                                        }
-                                        else // L'operazione non è andata a buon fine
-                                            key.attach(objectAttach);
-                                        break;
-                                        
-                                case 5: // Scrive l'output della richiesta e gli hotels, se presenti, al client; in più mette la key in OP_READ.
-                                        ServerMain.writeIntAndStringToClient(client, key);
-                                        // Gestione dell'attach.
-                                        if(objectAttach.getOutput() == 0) { // L'operazione è andata a buon fine.
-                                            if(objectAttach.getUsername().isEmpty()) // L'utente non era loggato.
-                                                key.attach(null);
-                                            else { // L'utente era loggato.
-                                                objectAttach.setMessagge("");
-                                                key.attach(objectAttach);
-                                            }
-                                        }
-                                        else // L'operazione non è andata a buon fine
-                                            key.attach(objectAttach);
-                                        break;
-                                        
-                                case 6: // Scrive l'output della richiesta
-                                        ServerMain.writeIntToClient(client, key);
-                                        key.attach(objectAttach);
-                                        break;
-
-                                case 7: // Scrive l'output della richiesta.
-                                        ServerMain.writeIntAndStringToClient(client, key);
-                                        key.attach(objectAttach);
-                                        break;
-
-                            }
+                        catch (IOException ex) {
+                            System.out.println("IO error occurred: " + ex.toString() + "\n");
+                            continue;
                         }
-                    } catch (IOException ex) {
-                        try { key.channel().close(); }
-                        catch (IOException e) {
-                            System.out.println("IO error occurred: " + e.toString() + e.getMessage() + "\n");
+                        System.out.println("Accepted connection from " + client);
+                        if (virtualMode) {
+                            ConnectionTask connection = new ConnectionTask(client, connections);
+                            connections.add(client);
+                            if (idleReaper != null)
+                                idleReaper.add(connection);
+                            connectionThreads.execute(connection);
                         }
-                        key.cancel();
+                        else
+                            ServerMain.leastLoadedReactor(reactors).addConnection(client);
                     }
-                
                 }
             }
 
@@ -901,33 +987,62 @@ public class ServerMain {
         }
         finally {
             // Chiudo il ServerSocketChannel: interrompo l'accettazione di nuove connesioni
-            if (serverSocketChannel.isOpen()) {
+            if (serverSocketChannel != null && serverSocketChannel.isOpen()) {
                 try {
                     serverSocketChannel.close();
                 } catch (IOException e) {
                     System.out.println("Error closing server channel: " + e);
                 }
             }
-            // Chiudi tutte le conessioni attive
-            for(SelectionKey key : selector.keys()){
-                if (key.isValid() && key.channel() instanceof SocketChannel) {
-                    SocketChannel channel = (SocketChannel) key.channel();
-                    if(channel.isOpen() && channel.isConnected()) {
-                        try{
-                            channel.close();
-                        }
-                        catch(IOException e) {
-                            System.out.println("Error closing socket channel: " + e);
-                        }
-                    }
-                }
-            }
             // Chiudo il selector
             try {
                 selector.close();
             } catch (IOException e) {
                 System.out.println("Error closing selector: " + e);
             }
+            // Sveglio i reactor e aspetto che chiudano tutte le connessioni attive.
+            ServerMain.stop.set(true);
+            for (Reactor reactor : reactors)
+                reactor.wakeup();
+            for (Thread reactorThread : reactorThreads) {
+                try {
+                    reactorThread.join();
+                }
+                catch(InterruptedException e){
+                    System.out.println("Interrupted while waiting for a reactor to finish: " + e);
+                }
+            }
+            // Chiudo le connessioni della modalità virtual: le letture bloccate falliscono e i thread virtuali terminano.
+            for (SocketChannel client : connections) {
+                try {
+                    client.close();
+                }
+                catch (IOException e) {
+                    System.out.println("Error closing socket channel: " + e);
+                }
+            }
+            if (connectionThreads != null) {
+                connectionThreads.shutdown();
+                try {
+                    if (!connectionThreads.awaitTermination(5, TimeUnit.SECONDS))
+                        connectionThreads.shutdownNow();
+                }
+                catch (InterruptedException e) {
+                    connectionThreads.shutdownNow();
+                }
+            }
+            // Chiudo il canale del server e le connessioni della modalità async, poi aspetto i thread del gruppo.
+            if (asyncGroup != null) {
+                try {
+                    asyncGroup.shutdownNow();
+                    asyncGroup.awaitTermination(5, TimeUnit.SECONDS);
+                }
+                catch (IOException | InterruptedException e) {
+                    System.out.println("Error closing asynchronous channel group: " + e);
+                }
+            }
+            // Chiusura del ThreadPool di autenticazione: le richieste in coda non hanno più un reactor a cui rispondere.
+            ServerMain.authThreadPool.shutdownNow();
             // Aspetto la terminazione del StopServerTask
             try {
                 listeningStopRequest.join();
@@ -0,0 +1,91 @@
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Questa è la classe che mantiene in memoria le sessioni create dai login: a ogni sessione è
+ * associato un token casuale e opaco con cui il client può riprendere la sessione su una nuova
+ * connessione senza ripetere la verifica BCrypt della password. Le sessioni scadono dopo un tempo
+ * fissato dalla creazione e il loro numero è limitato: oltre il limite vengono eliminate le più
+ * vecchie.
+ */
+public class SessionStore {
+    private static final int TOKEN_BYTES = 32; // Byte casuali di ciascun token.
+
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>(); // Sessioni attive per token.
+    private final ArrayDeque<String> creationOrder = new ArrayDeque<>(); // Token in ordine di creazione, quindi di scadenza.
+    private final SecureRandom random = new SecureRandom();
+    private final Base64.Encoder tokenEncoder = Base64.getUrlEncoder().withoutPadding();
+    private final int maxSessions; // Numero massimo di sessioni mantenute.
+    private final long ttlMillis; // Durata di una sessione dalla sua creazione.
+
+    // Sessione di un utente, valida fino a expiration.
+    private static final class Session {
+        private final String username;
+        private final long expiration;
+
+        private Session(String username, long expiration) {
+            this.username = username;
+            this.expiration = expiration;
+        }
+    }
+
+    public SessionStore(int maxSessions, long ttlMillis) {
+        this.maxSessions = maxSessions;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Crea una nuova sessione per l'utente ed elimina le sessioni scadute o in eccesso.
+     *
+     * @param username l'username dell'utente che ha appena fatto login.
+     * @return il token della sessione, da inviare al client.
+     */
+    public String createSession(String username) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        this.random.nextBytes(bytes);
+        String token = this.tokenEncoder.encodeToString(bytes);
+        long now = System.currentTimeMillis();
+        this.sessions.put(token, new Session(username, now + this.ttlMillis));
+        synchronized (this.creationOrder) {
+            this.creationOrder.addLast(token);
+            // Le sessioni più vecchie sono in testa: elimino quelle scadute, quelle già rimosse e quelle oltre il limite.
+            // Il limite è controllato sulle sessioni della mappa, perché creationOrder contiene anche i token già rimossi.
+            String oldest;
+            while ((oldest = this.creationOrder.peekFirst()) != null) {
+                Session session = this.sessions.get(oldest);
+                if (session != null && session.expiration > now && this.sessions.size() <= this.maxSessions)
+                    break;
+                this.creationOrder.pollFirst();
+                this.sessions.remove(oldest);
+            }
+            // I token rimossi restano in creationOrder finché non arrivano in testa: se sono troppi li elimino tutti.
+            if (this.creationOrder.size() > 2 * this.maxSessions)
+                this.creationOrder.removeIf(stale -> !this.sessions.containsKey(stale));
+        }
+        return token;
+    }
+
+    /**
+     * Restituisce l'utente di una sessione con una ricerca diretta del token.
+     *
+     * @param token il token ricevuto dal client.
+     * @return l'username della sessione, null se il token non esiste o è scaduto.
+     */
+    public String resumeSession(String token) {
+        Session session = this.sessions.get(token);
+        if (session == null)
+            return null;
+        if (session.expiration <= System.currentTimeMillis()) {
+            this.sessions.remove(token);
+            return null;
+        }
+        return session.username;
+    }
+
+    // Elimina una sessione, ad esempio dopo il logout; il token viene tolto da creationOrder in createSession.
+    public void removeSession(String token) {
+        this.sessions.remove(token);
+    }
+}
@@ -0,0 +1,19 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Questa è la versione sincronizzata del BufferPool, condivisa da tutti i thread virtuali delle
+ * connessioni quando il server è in modalità virtual. Le connessioni prendono un buffer solo
+ * mentre ricevono o inviano byte, così che quelle inattive non occupino memoria.
+ */
+public class SharedBufferPool extends BufferPool {
+
+    @Override
+    public synchronized ByteBuffer acquire() {
+        return super.acquire();
+    }
+
+    @Override
+    public synchronized void release(ByteBuffer buffer) {
+        super.release(buffer);
+    }
+}
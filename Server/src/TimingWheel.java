@@ -0,0 +1,69 @@
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Questa è la classe che rappresenta una timing wheel: un array circolare di slot, ciascuno
+ * dei quali contiene gli elementi con una scadenza nello stesso tick. Serve a trovare le
+ * connessioni inattive senza scorrere tutte le connessioni a ogni controllo.
+ * La scadenza di un elemento può spostarsi in avanti senza che l'elemento venga toccato (ad esempio
+ * quando una connessione riceve dei byte): quando il suo slot viene visitato l'elemento viene
+ * rimesso nello slot della nuova scadenza, quindi aggiornare l'attività di una connessione costa
+ * soltanto la scrittura di un timestamp. La classe non è sincronizzata.
+ *
+ * @param <T> il tipo degli elementi.
+ */
+public class TimingWheel<T> {
+    private final ArrayDeque<T>[] slots;
+    private final long tickMillis; // Durata di un tick in millisecondi.
+    private final ToLongFunction<T> deadlineOf; // Restituisce la scadenza attuale, in millisecondi, di un elemento.
+    private long currentTick; // Ultimo tick visitato.
+    private int size = 0; // Numero di elementi nella ruota.
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(int nSlots, long tickMillis, ToLongFunction<T> deadlineOf, long now) {
+        this.slots = new ArrayDeque[nSlots];
+        for (int i = 0; i < nSlots; i++)
+            this.slots[i] = new ArrayDeque<>();
+        this.tickMillis = tickMillis;
+        this.deadlineOf = deadlineOf;
+        this.currentTick = now / tickMillis;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    // Inserisce l'elemento nello slot della sua scadenza; le scadenze già passate finiscono nel prossimo tick.
+    public void add(T item) {
+        long tick = Math.max(this.deadlineOf.applyAsLong(item) / this.tickMillis, this.currentTick + 1);
+        this.slots[(int) (tick % this.slots.length)].addLast(item);
+        this.size++;
+    }
+
+    /**
+     * Visita gli slot dei tick trascorsi dall'ultima chiamata. Gli elementi scaduti vengono tolti
+     * dalla ruota e passati a onExpired; gli altri vengono rimessi nello slot della loro scadenza.
+     * Se sono trascorsi più tick degli slot, ogni slot viene visitato una volta sola.
+     *
+     * @param now l'istante attuale in millisecondi.
+     * @param onExpired l'azione da eseguire per ogni elemento scaduto.
+     */
+    public void expire(long now, Consumer<T> onExpired) {
+        long nowTick = now / this.tickMillis;
+        long firstTick = Math.max(this.currentTick + 1, nowTick - this.slots.length + 1);
+        this.currentTick = nowTick;
+        for (long tick = firstTick; tick <= nowTick; tick++) {
+            ArrayDeque<T> slot = this.slots[(int) (tick % this.slots.length)];
+            // Visito soltanto gli elementi presenti all'inizio: quelli rimessi nello stesso slot appartengono a un giro successivo.
+            for (int i = slot.size(); i > 0; i--) {
+                T item = slot.pollFirst();
+                this.size--;
+                if (this.deadlineOf.applyAsLong(item) <= now)
+                    onExpired.accept(item);
+                else
+                    this.add(item);
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ * Questa è la classe che rappresenta un token bucket: il bucket contiene al massimo burst token e
+ * si ricarica di ratePerSecond token al secondo; ogni operazione consuma un token e viene rifiutata
+ * se il bucket è vuoto. La ricarica viene calcolata al momento del prelievo a partire dall'istante
+ * dell'ultimo prelievo, quindi il bucket non richiede task periodici e tryAcquire non alloca.
+ * I token sono contati in nanosecondi di ricarica (un token vale 1e9 / ratePerSecond), così che i
+ * calcoli avvengano su interi.
+ */
+public class TokenBucket {
+    private final long nanosPerToken; // Tempo di ricarica di un token.
+    private final long capacityNanos; // Capacità del bucket, burst token espressi in nanosecondi di ricarica.
+    private long availableNanos; // Token disponibili, espressi in nanosecondi di ricarica.
+    private long lastRefill; // Istante, in nanosecondi, dell'ultimo aggiornamento di availableNanos.
+
+    public TokenBucket(double ratePerSecond, int burst) {
+        this.nanosPerToken = Math.max(1, (long) (1_000_000_000L / ratePerSecond));
+        this.capacityNanos = this.nanosPerToken * Math.max(1, burst);
+        this.availableNanos = this.capacityNanos; // Il bucket parte pieno.
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Ricarica il bucket per il tempo trascorso dall'ultimo prelievo e prova a consumare un token.
+     * Il metodo è sincronizzato perché i bucket degli utenti sono condivisi dalle loro connessioni.
+     *
+     * @param now l'istante attuale, in nanosecondi (System.nanoTime).
+     * @return true se il token è stato consumato, false se il bucket è vuoto.
+     */
+    public synchronized boolean tryAcquire(long now) {
+        this.availableNanos = Math.min(this.capacityNanos, this.availableNanos + Math.max(0, now - this.lastRefill));
+        this.lastRefill = now;
+        if (this.availableNanos < this.nanosPerToken)
+            return false;
+        this.availableNanos -= this.nanosPerToken;
+        return true;
+    }
+}
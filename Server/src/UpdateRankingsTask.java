@@ -12,8 +12,8 @@ import java.util.concurrent.PriorityBlockingQueue;
 /**
  * Questa classe rappresenta il task lato server che si preoccupa di:
  * 1) Ricalcolare tutti i ranking per tutte le città.
- * 2) Inviare datagram UDP nel caso in cui il migliore hotel
- *    di una determinata città sia cambiato.
+ * 2) Inviare datagram UDP, e notifiche push ai client che le hanno
+ *    concordate, nel caso in cui il migliore hotel di una determinata città sia cambiato.
 */
 public class UpdateRankingsTask implements Runnable {
     
@@ -37,13 +37,15 @@ public class UpdateRankingsTask implements Runnable {
             // Svuoto il ranking
             ranking.clear();
             // Prendo tutti gli hotel di quella città.
-            Collection<Hotel> hotelOfCity = ServerMain.getHotelsOfCity(entry.getKey()).values();
+            Collection<Hotel> hotelOfCity = ServerMain.getHotelsOfCity(entry.getKey());
             // Ricalcolo la media pesata degli hotel di quella città.
             for(Hotel hotel : hotelOfCity)
                 hotel.getWeightedAverageReviews();
             // Ricalcolo il ranking per quella città.
             for(Hotel hotel : hotelOfCity)
                 ranking.add(hotel);
+            // Pubblico la nuova classifica per la paginazione.
+            entry.getValue().publishSnapshot();
         }
         return oldBestHotel;
     }
@@ -60,10 +62,13 @@ public class UpdateRankingsTask implements Runnable {
             ConcurrentSkipListSet<Hotel> ranking = entry.getValue().getRanking();
             // Se il nuovo migliore hotel per quella città è diverso da quello vecchio allora invio messaggio UDP a tutti i cli.
             if(!ranking.first().getId().equals(oldBestHotel.get(entry.getValue().getCity()))) {
+                String messagge = "New best Hotel for " + entry.getValue().getCity()+ ": '" + ranking.first().getName() + "'.";
+                // Invio la stessa notifica sulle connessioni TCP iscritte alle notifiche push.
+                ServerMain.pushNotification(messagge);
                 try (MulticastSocket socket = new MulticastSocket()) {
                     // Creo il multicast group
                     InetAddress group = InetAddress.getByName(UpdateRankingsTask.MULTICAST_GROUP);
-                    byte[] data = ("New best Hotel for " + entry.getValue().getCity()+ ": '" + ranking.first().getName() + "'.").getBytes();
+                    byte[] data = messagge.getBytes();
                     DatagramPacket packet = new DatagramPacket(data, data.length, group, MULTICAST_PORT);
                     socket.send(packet);
                 } catch (IOException ex) {
@@ -7,6 +7,7 @@ public class User {
     private final String hashedPassword;
     private String badge;
     private int nRecensioni;
+    private transient TokenBucket reviewBucket; // Limite di recensioni dell'utente, condiviso dalle sue connessioni; creato al primo uso.
     
     public User (String username, String hashedPassword) {
         this.username = username;
@@ -30,7 +31,7 @@ public class User {
         return this.hashedPassword;
     }
 
-    public String getBadge() {
+    public synchronized String getBadge() {
         return this.badge;
     }
 
@@ -38,7 +39,20 @@ public class User {
         return this.nRecensioni;
     }
 
-    public void addRecensione() {
+    /**
+     * Restituisce il token bucket delle recensioni dell'utente, creandolo alla prima recensione.
+     *
+     * @param ratePerSecond le recensioni consentite al secondo.
+     * @param burst le recensioni consentite di seguito a bucket pieno.
+     * @return il token bucket dell'utente.
+     */
+    public synchronized TokenBucket getReviewBucket(double ratePerSecond, int burst) {
+        if (this.reviewBucket == null)
+            this.reviewBucket = new TokenBucket(ratePerSecond, burst);
+        return this.reviewBucket;
+    }
+
+    public synchronized void addRecensione() {
         this.nRecensioni++;
         // Cambio di badge
         if(this.nRecensioni > 5 && this.nRecensioni < 10)
@@ -0,0 +1,50 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Questa è la classe che crea i thread virtuali della modalità virtual. I thread virtuali esistono
+ * soltanto da JDK 21, quindi le relative API vengono chiamate tramite reflection: così il server
+ * compila e funziona anche su JDK 17 nelle modalità nio e async, mentre la modalità virtual
+ * richiede JDK 21.
+ */
+public class VirtualThreads {
+
+    /**
+     * Restituisce una ThreadFactory di thread virtuali.
+     *
+     * @param prefix il prefisso dei nomi dei thread, seguito da un contatore che parte da 0.
+     * @return la ThreadFactory.
+     * @throws IllegalStateException se la JVM non supporta i thread virtuali.
+     */
+    public static ThreadFactory factory(String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads require JDK 21 or later", e);
+        }
+    }
+
+    /**
+     * Restituisce un executor che esegue ogni task in un nuovo thread virtuale.
+     *
+     * @param prefix il prefisso dei nomi dei thread.
+     * @return l'executor.
+     * @throws IllegalStateException se la JVM non supporta i thread virtuali.
+     */
+    public static ExecutorService newThreadPerTaskExecutor(String prefix) {
+        ThreadFactory factory = VirtualThreads.factory(prefix);
+        try {
+            Method method = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) method.invoke(null, factory);
+        }
+        catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads require JDK 21 or later", e);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Questa è la classe che verifica che la media pesata mantenuta in modo incrementale da Hotel
+ * coincida con quella calcolata scorrendo tutte le recensioni: per ogni recensione il voto medio
+ * moltiplicato per e^(-giorni/300), diviso per il numero di recensioni. Le storie di recensioni sono
+ * casuali, in ordine sparso e lunghe fino a 20 anni, così che la somma venga riportata più volte a un
+ * giorno più recente; alle recensioni caricate seguono delle recensioni aggiunte con addReview.
+ *
+ * Vengono controllati due ricalcoli completi:
+ * - con i giorni di calendario usati da Hotel (Review.decay(oggi - giorno della recensione)):
+ *   l'errore relativo non deve superare MAX_RELATIVE_ERROR, cioè soltanto errori di arrotondamento;
+ * - con la formula precedente, che contava i periodi di 24 ore trascorsi dal secondo della
+ *   recensione ((adesso - timestamp) / 86400): i giorni contati differiscono al più di uno, quindi
+ *   ogni peso al più di un fattore e^(-1/300) e l'errore relativo non deve superare
+ *   MAX_BASELINE_ERROR (circa 0,33%).
+ *
+ * Non fa parte del server: va compilata con le classi del server ed eseguita dalla cartella del
+ * progetto (legge la configurazione del server), come descritto nel README:
+ * java -cp <classi>:Lib/* WeightedAverageCheck [numero di hotel] [seed]
+ * Termina con codice 1 se uno dei due errori supera il proprio limite.
+ */
+public class WeightedAverageCheck {
+    private static final double MAX_RELATIVE_ERROR = 1e-9;
+    private static final double MAX_BASELINE_ERROR = 1 - Math.exp(-1 / Review.DECAY_DAYS) + 1e-9;
+    private static final long YEARS_OF_HISTORY = 20;
+
+    // Media pesata ricalcolata scorrendo tutte le recensioni, come prima della somma incrementale.
+    private static double fullRecalculation(ReviewStore reviews) {
+        if (reviews.size() == 0)
+            return 0;
+        long today = Review.currentDay();
+        double weightedSum = 0;
+        for (int i = 0; i < reviews.size(); i++) {
+            Review review = reviews.get(i);
+            weightedSum += review.getAverageVote() * Review.decay(today - review.getDay());
+        }
+        return weightedSum / reviews.size();
+    }
+
+    // Media pesata con la formula precedente: giorni contati come periodi di 24 ore dal secondo della recensione.
+    private static double baselineRecalculation(ReviewStore reviews, long now) {
+        if (reviews.size() == 0)
+            return 0;
+        double weightedSum = 0;
+        for (int i = 0; i < reviews.size(); i++) {
+            Review review = reviews.get(i);
+            long differenceInDays = (now - review.getTimestamp()) / (24 * 60 * 60);
+            weightedSum += review.getAverageVote() * Math.exp(-((double) 1 / 300) * differenceInDays);
+        }
+        return weightedSum / reviews.size();
+    }
+
+    private static double relativeError(double expected, double actual) {
+        return expected == 0 ? Math.abs(actual) : Math.abs(actual - expected) / expected;
+    }
+
+    public static void main(String[] args) {
+        int nHotels = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        Random random = new Random(args.length > 1 ? Long.parseLong(args[1]) : 42);
+        long now = Review.currentDay() * Review.SECONDS_PER_DAY;
+        double maxError = 0;
+        double maxBaselineError = 0;
+        for (int h = 0; h < nHotels; h++) {
+            ReviewStore loaded = ReviewStore.create();
+            int nLoaded = random.nextInt(300);
+            for (int i = 0; i < nLoaded; i++) {
+                long timestamp = now - (long) (random.nextDouble() * YEARS_OF_HISTORY * 365 * Review.SECONDS_PER_DAY);
+                loaded.add(new Review(random.nextInt(6), random.nextInt(6), random.nextInt(6), random.nextInt(6), random.nextInt(6), timestamp));
+            }
+            Hotel hotel = new Hotel(Integer.toString(h), "Hotel " + h, "", "", "", new ArrayList<>(), loaded);
+            int nAdded = random.nextInt(5);
+            for (int i = 0; i < nAdded; i++)
+                hotel.addReview(new int[]{random.nextInt(6), random.nextInt(6), random.nextInt(6), random.nextInt(6), random.nextInt(6)});
+            double actual = hotel.getWeightedAverageReviews();
+            double expected = WeightedAverageCheck.fullRecalculation(hotel.getRatings());
+            double baseline = WeightedAverageCheck.baselineRecalculation(hotel.getRatings(), Instant.now().getEpochSecond());
+            maxError = Math.max(maxError, WeightedAverageCheck.relativeError(expected, actual));
+            maxBaselineError = Math.max(maxBaselineError, WeightedAverageCheck.relativeError(baseline, actual));
+        }
+        System.out.println("Checked " + nHotels + " hotels, max relative error: " + maxError
+                + ", against the previous formula: " + maxBaselineError + " (bound " + MAX_BASELINE_ERROR + ")");
+        boolean failed = false;
+        if (maxError > MAX_RELATIVE_ERROR) {
+            System.out.println("Incremental weighted average differs from the full recalculation.");
+            failed = true;
+        }
+        if (maxBaselineError > MAX_BASELINE_ERROR) {
+            System.out.println("Incremental weighted average differs from the previous formula by more than one day of decay.");
+            failed = true;
+        }
+        if (failed)
+            System.exit(1);
+    }
+}